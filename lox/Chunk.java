@@ -0,0 +1,52 @@
+package craftinginterpreter.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A sequence of bytecode together with its constant pool and the source
+// line of every code word, for reporting runtime errors.
+class Chunk {
+    int[] code = new int[16];
+    int[] lines = new int[16];
+    int count = 0;
+    private final List<Object> constantPool = new ArrayList<>();
+    private final Map<String, Integer> names = new HashMap<>();
+    Object[] constants = new Object[0];
+    // Unboxed copy of every numeric constant, at the same index.
+    double[] numbers = new double[0];
+
+    void write(int word, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = word;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        // Identifiers are looked up by name so share a single pool entry.
+        if (value instanceof String) {
+            Integer index = names.get(value);
+            if (index != null) return index;
+            names.put((String)value, constantPool.size());
+        }
+        constantPool.add(value);
+        return constantPool.size() - 1;
+    }
+
+    // Trims the code to size and freezes the constant pool for the VM.
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantPool.toArray();
+        numbers = new double[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            if (constants[i] instanceof Double) numbers[i] = (double)constants[i];
+        }
+    }
+}
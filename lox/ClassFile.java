@@ -0,0 +1,292 @@
+package craftinginterpreter.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for JvmCompiler. Classes are
+// written as version 49 so the verifier infers types itself and no stack
+// map frames have to be computed.
+final class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 1;
+    static final int ICONST_0 = 3;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC_W = 19;
+    static final int ALOAD = 25;
+    static final int ASTORE = 58;
+    static final int AALOAD = 50;
+    static final int AASTORE = 83;
+    static final int POP = 87;
+    static final int DUP = 89;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int GOTO = 167;
+    static final int ARETURN = 176;
+    static final int RETURN = 177;
+    static final int GETSTATIC = 178;
+    static final int GETFIELD = 180;
+    static final int PUTFIELD = 181;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int INVOKESTATIC = 184;
+    static final int NEW = 187;
+    static final int ANEWARRAY = 189;
+    static final int CHECKCAST = 192;
+    static final int IFNONNULL = 199;
+
+    private static final int MAX_JUMP = Short.MAX_VALUE;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // Constant pool entries are shared, keyed by their contents.
+    private int entry(String key, int tag, int... values) {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(tag);
+            for (int value : values) poolOut.writeShort(value);
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int classRef(String name) {
+        return entry("C" + name, 7, utf8(name));
+    }
+
+    int string(String value) {
+        return entry("S" + value, 8, utf8(value));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + ":" + descriptor, 9,
+                classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + ":" + descriptor, 10,
+                classRef(owner), nameAndType(name, descriptor));
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor, int parameterSlots) {
+        Code code = new Code(access, utf8(name), utf8(descriptor), parameterSlots);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        int codeAttribute = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) out.writeShort(index);
+
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+
+            out.writeShort(methods.size());
+            for (Code method : methods) method.writeTo(out, codeAttribute);
+
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    // The body of one method. Every instruction is emitted together with
+    // its effect on the operand stack so max_stack falls out of emission.
+    static final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private byte[] code = new byte[64];
+        private int count = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, int name, int descriptor, int parameterSlots) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = parameterSlots;
+        }
+
+        int position() {
+            return count;
+        }
+
+        private void write(int value) {
+            if (count == code.length) code = Arrays.copyOf(code, count * 2);
+            code[count++] = (byte)value;
+        }
+
+        int stack() {
+            return stack;
+        }
+
+        // Control flow merges are not tracked, the emitter resets the depth
+        // where a branch rejoins.
+        void stack(int depth) {
+            stack = depth;
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        void op(int opcode, int effect) {
+            write(opcode);
+            adjust(effect);
+        }
+
+        void op1(int opcode, int operand, int effect) {
+            write(opcode);
+            write(operand);
+            adjust(effect);
+        }
+
+        void op2(int opcode, int operand, int effect) {
+            write(opcode);
+            write(operand >> 8);
+            write(operand);
+            adjust(effect);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op1(BIPUSH, value & 0xff, 1);
+            } else {
+                op2(SIPUSH, value, 1);
+            }
+        }
+
+        void load(int local) {
+            op1(ALOAD, local, 1);
+        }
+
+        void store(int local) {
+            op1(ASTORE, local, -1);
+        }
+
+        int newLocal() {
+            if (maxLocals == 255) throw new IllegalStateException("Too many locals.");
+            return maxLocals++;
+        }
+
+        // Emits a forward jump and returns where to patch it.
+        int jump(int opcode, int effect) {
+            int at = position();
+            op2(opcode, 0, effect);
+            return at;
+        }
+
+        void patch(int jump) {
+            int offset = position() - jump;
+            if (offset > MAX_JUMP) throw new IllegalStateException("Jump too large.");
+            code[jump + 1] = (byte)(offset >> 8);
+            code[jump + 2] = (byte)offset;
+        }
+
+        void jumpBack(int opcode, int target, int effect) {
+            int offset = target - position();
+            if (-offset > MAX_JUMP) throw new IllegalStateException("Jump too large.");
+            op2(opcode, offset & 0xffff, effect);
+        }
+
+        private void writeTo(DataOutputStream out, int codeAttribute) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + count);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(count);
+            out.write(code, 0, count);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
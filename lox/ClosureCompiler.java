@@ -0,0 +1,530 @@
+package craftinginterpreter.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Converts resolved statements into a tree of Java closures, once, before
+// they run. Everything the tree-walker decides per evaluation (which
+// operator, where a variable lives, how many arguments a call has) is
+// decided here, so running a closure never goes back through accept.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Code>, Stmt.Visitor<ClosureCompiler.Action> {
+    // Completion of an action, the tree-walker's Interpreter.Completion.
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int RETURN = 2;
+    static final int TAIL_CALL = 3;
+
+    interface Code {
+        Object run(Environment environment);
+    }
+
+    interface Action {
+        int run(Environment environment);
+    }
+
+    // A compiled function declaration, shared by all of its closures.
+    static class Function {
+        final Stmt.Function declaration;
+        final Interpreter.Local[] captures;
+        final Action body;
+
+        Function(Stmt.Function declaration, Interpreter.Local[] captures, Action body) {
+            this.declaration = declaration;
+            this.captures = captures;
+            this.body = body;
+        }
+    }
+
+    private final ClosureInterpreter interpreter;
+
+    ClosureCompiler(ClosureInterpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Action compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Code compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Action sequence(List<Stmt> statements) {
+        Action[] actions = new Action[statements.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = compile(statements.get(i));
+        }
+
+        switch (actions.length) {
+            case 0: return environment -> NORMAL;
+            case 1: return actions[0];
+            default:
+                return environment -> {
+                    for (Action action : actions) {
+                        int completion = action.run(environment);
+                        if (completion != NORMAL) return completion;
+                    }
+                    return NORMAL;
+                };
+        }
+    }
+
+    private Function function(Stmt.Function stmt) {
+        return new Function(stmt, stmt.captures, sequence(stmt.body));
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be a number.");
+    }
+
+    @Override
+    public Action visitBlockStmt(Stmt.Block stmt) {
+        Action body = sequence(stmt.statements);
+        if (stmt.inline) {
+            return environment -> {
+                Environment.avoided++;
+                return body.run(environment);
+            };
+        }
+        return environment -> body.run(new Environment(environment));
+    }
+
+    @Override
+    public Action visitClassStmt(Stmt.Class stmt) {
+        String name = stmt.name.lexeme;
+        int slot = stmt.slot;
+        boolean captured = stmt.selfCaptured;
+        Code superclass = stmt.superclass == null ? null : compile(stmt.superclass);
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+
+        Function[] methods = new Function[stmt.methods.size()];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = function(stmt.methods.get(i));
+        }
+
+        return environment -> {
+            Object parent = null;
+            Environment scope = environment;
+            if (superclass != null) {
+                parent = superclass.run(environment);
+                if (!(parent instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+
+                scope = new Environment(environment);
+                scope.define("super", parent);
+            }
+
+            Map<String, LoxFunction> functions = new HashMap<>();
+            for (Function method : methods) {
+                String methodName = method.declaration.name.lexeme;
+                functions.put(methodName, new ClosureFunction(interpreter, method,
+                            scope.capture(method.captures),
+                            methodName.equals("init"), null));
+            }
+
+            environment.define(name, slot, captured, new LoxClass(name, (LoxClass)parent, functions));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+        Code expression = compile(stmt.expression);
+        return environment -> {
+            expression.run(environment);
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Action visitFunctionStmt(Stmt.Function stmt) {
+        String name = stmt.name.lexeme;
+        int slot = stmt.slot;
+        boolean captured = stmt.selfCaptured;
+        Function function = function(stmt);
+        return environment -> {
+            environment.define(name, slot, captured, new ClosureFunction(interpreter, function,
+                        environment.capture(function.captures), false, null));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+        Code condition = compile(stmt.condition);
+        Action thenBranch = compile(stmt.thenBranch);
+        if (stmt.elsebranch == null) {
+            return environment -> Interpreter.isTruthy(condition.run(environment))
+                ? thenBranch.run(environment) : NORMAL;
+        }
+
+        Action elseBranch = compile(stmt.elsebranch);
+        return environment -> Interpreter.isTruthy(condition.run(environment))
+            ? thenBranch.run(environment) : elseBranch.run(environment);
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.Print stmt) {
+        Code expression = compile(stmt.expression);
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.run(environment)));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Action visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> {
+                interpreter.returnValue = null;
+                return RETURN;
+            };
+        }
+
+        if (stmt.tailCall) return tailCall((Expr.Call)stmt.value);
+
+        Code value = compile(stmt.value);
+        return environment -> {
+            interpreter.returnValue = value.run(environment);
+            return RETURN;
+        };
+    }
+
+    // A return of a call's result. A Lox function is not called from here
+    // but left in the interpreter's tail fields for the caller's invoke()
+    // loop, so tail calls don't grow the Java stack.
+    private Action tailCall(Expr.Call expr) {
+        Token paren = expr.paren;
+        Code callee = compile(expr.callee);
+        Code[] arguments = compile(expr.arguments);
+        return environment -> {
+            Object function = callee.run(environment);
+            Object[] values = evaluate(arguments, environment);
+            if (function instanceof LoxFunction) {
+                LoxFunction target = (LoxFunction)function;
+                interpreter.prepareTailCall(target, target.receiver, Arrays.asList(values), paren);
+                return TAIL_CALL;
+            }
+
+            // Classes and native functions are called the usual way.
+            interpreter.returnValue = call(paren, function, values);
+            return RETURN;
+        };
+    }
+
+    @Override
+    public Action visitBreakStmt(Stmt.Break stmt) {
+        return environment -> BREAK;
+    }
+
+    @Override
+    public Action visitWhileStmt(Stmt.While stmt) {
+        Code condition = compile(stmt.condition);
+        Action body = compile(stmt.body);
+        return environment -> {
+            while (Interpreter.isTruthy(condition.run(environment))) {
+                int completion = body.run(environment);
+                if (completion == BREAK) break;
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Action visitVarStmt(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        int slot = stmt.slot;
+        if (stmt.initializer == null) {
+            return environment -> {
+                environment.define(name, slot, null);
+                return NORMAL;
+            };
+        }
+
+        Code initializer = compile(stmt.initializer);
+        return environment -> {
+            environment.define(name, slot, initializer.run(environment));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        Code value = compile(expr.value);
+        Interpreter.Local local = expr.local;
+        if (local == null) {
+            Token name = expr.name;
+            Global global = expr.global;
+            return environment -> {
+                Object result = value.run(environment);
+                global.assign(name, result);
+                return result;
+            };
+        }
+
+        int depth = local.depth;
+        int slot = local.slot;
+        return environment -> {
+            Object result = value.run(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Token operator = expr.operator;
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+
+        switch (operator.type) {
+            case GREATER:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a > (double)b;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a >= (double)b;
+                };
+            case LESS:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a < (double)b;
+                };
+            case LESS_EQUAL:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a <= (double)b;
+                };
+            case MINUS:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a - (double)b;
+                };
+            case STAR:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a * (double)b;
+                };
+            case SLASH:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    if ((double)b == 0) {
+                        throw new RuntimeError(operator, "Divide by zero Error.");
+                    }
+                    return (double)a / (double)b;
+                };
+            case BANG_EQUAL:
+                return environment -> {
+                    Object a = left.run(environment);
+                    return !Interpreter.isEqual(a, right.run(environment));
+                };
+            case EQUAL_EQUAL:
+                return environment -> {
+                    Object a = left.run(environment);
+                    return Interpreter.isEqual(a, right.run(environment));
+                };
+            case PLUS:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    if (a instanceof Double && b instanceof Double)
+                        return (double)a + (double)b;
+                    if (a instanceof String && b instanceof String)
+                        return (String)a + (String)b;
+                    if (a instanceof String && b instanceof Double)
+                        return (String)a + Interpreter.stringify(b);
+                    if (a instanceof Double && b instanceof String)
+                        return Interpreter.stringify(a) + (String)b;
+
+                    throw new RuntimeError(operator, "Operands must be either numbers or strings.");
+                };
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        Token paren = expr.paren;
+        Code callee = compile(expr.callee);
+        Code[] arguments = compile(expr.arguments);
+        return environment -> {
+            Object function = callee.run(environment);
+            return call(paren, function, evaluate(arguments, environment));
+        };
+    }
+
+    private Code[] compile(List<Expr> exprs) {
+        Code[] codes = new Code[exprs.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = compile(exprs.get(i));
+        }
+        return codes;
+    }
+
+    private static Object[] evaluate(Code[] codes, Environment environment) {
+        Object[] values = new Object[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            values[i] = codes[i].run(environment);
+        }
+        return values;
+    }
+
+    private Object call(Token paren, Object function, Object[] values) {
+        if (!(function instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call funcitons and classes");
+        }
+
+        LoxCallable callable = (LoxCallable)function;
+        if (values.length != callable.arity()) {
+            throw new RuntimeError(paren, "Expected " + callable.arity() +
+                    " arguments but got " + values.length);
+        }
+        interpreter.enterCall(paren);
+        try {
+            return callable.call(interpreter, Arrays.asList(values));
+        } finally {
+            interpreter.exitCall();
+        }
+    }
+
+    @Override
+    public Code visitGetExpr(Expr.Get expr) {
+        Token name = expr.name;
+        Code object = compile(expr.object);
+        return environment -> {
+            Object value = object.run(environment);
+            if (value instanceof LoxInstance) {
+                return ((LoxInstance)value).get(name);
+            }
+
+            throw new RuntimeError(name, "Only instrances have properties.");
+        };
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.run(environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.run(environment);
+            };
+        }
+
+        return environment -> {
+            Object value = left.run(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.run(environment);
+        };
+    }
+
+    @Override
+    public Code visitSetExpr(Expr.Set expr) {
+        Token name = expr.name;
+        Code object = compile(expr.object);
+        Code value = compile(expr.value);
+        return environment -> {
+            Object target = object.run(environment);
+
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.run(environment);
+            ((LoxInstance)target).set(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitSuperExpr(Expr.Super expr) {
+        Token method = expr.method;
+        Interpreter.Local superLocal = expr.local;
+        Interpreter.Local thisLocal = expr.receiver;
+        return environment -> {
+            LoxClass superclass = (LoxClass)environment.getAt(superLocal.depth, superLocal.slot);
+            LoxInstance object = (LoxInstance)environment.getAt(thisLocal.depth, thisLocal.slot);
+
+            LoxFunction function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public Code visitThisExpr(Expr.This expr) {
+        return variable(expr.local, null, expr.keyword);
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        Token operator = expr.operator;
+        Code right = compile(expr.right);
+        if (operator.type == TokenType.BANG) {
+            return environment -> !Interpreter.isTruthy(right.run(environment));
+        }
+
+        return environment -> {
+            Object value = right.run(environment);
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+            return -(double)value;
+        };
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.local, expr.global, expr.name);
+    }
+
+    private Code variable(Interpreter.Local local, Global global, Token name) {
+        if (local == null) {
+            return environment -> global.get(name);
+        }
+
+        int depth = local.depth;
+        int slot = local.slot;
+        return environment -> environment.getAt(depth, slot);
+    }
+}
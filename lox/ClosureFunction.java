@@ -0,0 +1,35 @@
+package craftinginterpreter.lox;
+
+import java.util.List;
+
+// A function whose body was compiled to closures by ClosureCompiler.
+class ClosureFunction extends LoxFunction {
+    private final ClosureInterpreter interpreter;
+    private final ClosureCompiler.Function function;
+
+    ClosureFunction(ClosureInterpreter interpreter, ClosureCompiler.Function function,
+            Upvalue[] upvalues, boolean isInitializer, LoxInstance receiver) {
+        super(function.declaration, upvalues, isInitializer, receiver);
+        this.interpreter = interpreter;
+        this.function = function;
+    }
+
+    @Override
+    LoxFunction bind(LoxInstance instance) {
+        return new ClosureFunction(interpreter, function, upvalues, isInitializer, instance);
+    }
+
+    @Override
+    Object run(Interpreter caller, LoxInstance receiver, List<Object> arguments) {
+        Environment environment = new Environment(upvalues);
+        if (receiver != null) environment.define("this", receiver);
+        for (Object argument : arguments) {
+            environment.define(null, argument);
+        }
+
+        int completion = function.body.run(environment);
+        if (completion == ClosureCompiler.TAIL_CALL) return TAIL_CALL;
+        if (completion == ClosureCompiler.RETURN) return interpreter.takeReturnValue();
+        return null;
+    }
+}
@@ -0,0 +1,20 @@
+package craftinginterpreter.lox;
+
+import java.util.List;
+
+// Runs programs as trees of closures built by ClosureCompiler. The Resolver
+// resolves into it exactly as it does for the tree-walker, and it shares
+// globals, classes and instances with it.
+class ClosureInterpreter extends Interpreter {
+    @Override
+    void interpret(List<Stmt> statements) {
+        ClosureCompiler compiler = new ClosureCompiler(this);
+        try {
+            for (Stmt statement : statements) {
+                compiler.compile(statement).run(globals);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+}
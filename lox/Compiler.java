@@ -0,0 +1,625 @@
+package craftinginterpreter.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static craftinginterpreter.lox.OpCode.*;
+
+// Compiles resolved statements into bytecode for the VM. Scoping follows the
+// Resolver: top-level names are globals, everything else lives in a stack
+// slot of its function's frame or is captured as an upvalue.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // Compilation state of the function currently being emitted.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    // Net stack effect of every fixed-size instruction, indexed by opcode.
+    // The calls, INVOKE and SUPER_INVOKE and their TAIL_ forms, also pop
+    // their arguments.
+    private static final int[] STACK_EFFECT = {
+        1, 1, 1, 1, -1,        // CONSTANT NIL TRUE FALSE POP
+        1, 0, 1, -1, 0,        // GET_LOCAL SET_LOCAL GET_GLOBAL DEFINE_GLOBAL SET_GLOBAL
+        1, 0, 0, -1, -1,       // GET_UPVALUE SET_UPVALUE GET_PROPERTY SET_PROPERTY GET_SUPER
+        -1, -1, -1, -1, -1, -1,// EQUAL NOT_EQUAL GREATER GREATER_EQUAL LESS LESS_EQUAL
+        -1, -1, -1, -1,        // ADD SUBTRACT MULTIPLY DIVIDE
+        0, 0, -1,              // NOT NEGATE PRINT
+        0, 0, 0,               // JUMP JUMP_IF_FALSE LOOP
+        0, 0, -1,              // CALL INVOKE SUPER_INVOKE
+        1, -1, -1,             // CLOSURE CLOSE_UPVALUE RETURN
+        1, -1, -1,             // CLASS INHERIT METHOD
+        1,                     // NUMBER_CONSTANT
+        0, 0, -1               // TAIL_CALL TAIL_INVOKE TAIL_SUPER_INVOKE
+    };
+
+    private FunctionState current = null;
+    private int line = 0;
+
+    VmFunction compile(List<Stmt> statements) {
+        beginFunction(new VmFunction(null, 0), FunctionType.SCRIPT, "");
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitOp(NIL);
+        emitOp(RETURN);
+        return endFunction();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int name = identifierConstant(stmt.name.lexeme);
+        declareVariable(stmt.name.lexeme);
+        emitOp(CLASS, name);
+        defineVariable(name);
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal("super");
+            markInitialized();
+
+            namedVariable(stmt.name.lexeme);
+            line = stmt.superclass.name.line;
+            emitOp(INHERIT);
+        }
+
+        namedVariable(stmt.name.lexeme);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitOp(METHOD, identifierConstant(method.name.lexeme));
+        }
+        emitOp(POP);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        int name = identifierConstant(stmt.name.lexeme);
+        declareVariable(stmt.name.lexeme);
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        emitOp(POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        // The condition is still on the stack when the else path starts.
+        current.stackDepth++;
+        emitOp(POP);
+        if (stmt.elsebranch != null) compile(stmt.elsebranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(GET_LOCAL, 0);
+        } else if (stmt.tailCall) {
+            call((Expr.Call)stmt.value, true);
+        } else if (stmt.value == null) {
+            emitOp(NIL);
+        } else {
+            compile(stmt.value);
+        }
+        emitOp(RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.keyword.line;
+        // The Resolver only lets a break through inside a loop of the same
+        // function, so there is always one here.
+        Loop loop = current.loop;
+
+        // Discard the locals of every scope the break jumps out of. They stay
+        // declared for the code that follows the break in the same block.
+        int depth = current.stackDepth;
+        for (int i = current.locals.size() - 1; i >= 0; i--) {
+            Local local = current.locals.get(i);
+            if (local.depth <= loop.scopeDepth) break;
+            emitOp(local.isCaptured ? CLOSE_UPVALUE : POP);
+        }
+        loop.breaks.add(emitJump(JUMP));
+        current.stackDepth = depth;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        emitOp(POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        current.stackDepth++;
+        emitOp(POP);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+
+        current.loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        int name = identifierConstant(stmt.name.lexeme);
+        declareVariable(stmt.name.lexeme);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(NIL);
+        }
+        defineVariable(name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        setVariable(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER:       emitOp(GREATER); break;
+            case GREATER_EQUAL: emitOp(GREATER_EQUAL); break;
+            case LESS:          emitOp(LESS); break;
+            case LESS_EQUAL:    emitOp(LESS_EQUAL); break;
+            case MINUS:         emitOp(SUBTRACT); break;
+            case PLUS:          emitOp(ADD); break;
+            case SLASH:         emitOp(DIVIDE); break;
+            case STAR:          emitOp(MULTIPLY); break;
+            case BANG_EQUAL:    emitOp(NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emitOp(EQUAL); break;
+            default:
+                // Unreachable.
+                emitOp(POP);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // A call, or with tail set one in tail position, which the RETURN after
+    // it only reaches if the callee is not a closure.
+    private void call(Expr.Call expr, boolean tail) {
+        if (expr.callee instanceof Expr.Get) {
+            // Method calls skip creating the bound method.
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitInvoke(tail ? TAIL_INVOKE : INVOKE, identifierConstant(get.name.lexeme),
+                    expr.arguments.size());
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            namedVariable("this");
+            compileArguments(expr.arguments);
+            namedVariable("super");
+            line = expr.paren.line;
+            emitInvoke(tail ? TAIL_SUPER_INVOKE : SUPER_INVOKE,
+                    identifierConstant(superExpr.method.lexeme), expr.arguments.size());
+        } else {
+            compile(expr.callee);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitOp(tail ? TAIL_CALL : CALL, expr.arguments.size());
+            adjustStack(-expr.arguments.size());
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(GET_PROPERTY, identifierConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(NIL);
+        } else if (expr.value == Boolean.TRUE) {
+            emitOp(TRUE);
+        } else if (expr.value == Boolean.FALSE) {
+            emitOp(FALSE);
+        } else if (expr.value instanceof Double) {
+            emitOp(NUMBER_CONSTANT, current.function.chunk.addConstant(expr.value));
+        } else {
+            emitOp(CONSTANT, current.function.chunk.addConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        int jump;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            jump = emitJump(JUMP);
+            patchJump(elseJump);
+        } else {
+            jump = emitJump(JUMP_IF_FALSE);
+        }
+        emitOp(POP);
+        compile(expr.right);
+        patchJump(jump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(SET_PROPERTY, identifierConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable("this");
+        namedVariable("super");
+        line = expr.method.line;
+        emitOp(GET_SUPER, identifierConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable("this");
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG:  emitOp(NOT); break;
+            case MINUS: emitOp(NEGATE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        line = stmt.name.line;
+        VmFunction function = new VmFunction(stmt.name.lexeme, stmt.params.size());
+        beginFunction(function, type, type == FunctionType.FUNCTION ? "" : "this");
+        beginScope();
+        for (Token param : stmt.params) {
+            addLocal(param.lexeme);
+            markInitialized();
+        }
+        adjustStack(stmt.params.size());
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        if (type == FunctionType.INITIALIZER) {
+            emitOp(GET_LOCAL, 0);
+        } else {
+            emitOp(NIL);
+        }
+        emitOp(RETURN);
+
+        List<Upvalue> upvalues = current.upvalues;
+        endFunction();
+
+        emitOp(CLOSURE, current.function.chunk.addConstant(function));
+        for (Upvalue upvalue : upvalues) {
+            emitWord(upvalue.isLocal ? 1 : 0);
+            emitWord(upvalue.index);
+        }
+    }
+
+    private void beginFunction(VmFunction function, FunctionType type, String slotZero) {
+        current = new FunctionState(current, function, type);
+        // Slot zero holds the callee, or the receiver for methods.
+        current.locals.add(new Local(slotZero, 0));
+        current.stackDepth = 1;
+        current.function.maxStack = 1;
+    }
+
+    private VmFunction endFunction() {
+        VmFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.finish();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emitOp(locals.get(locals.size() - 1).isCaptured ? CLOSE_UPVALUE : POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private int identifierConstant(String name) {
+        return current.function.chunk.addConstant(name);
+    }
+
+    private void declareVariable(String name) {
+        if (current.scopeDepth == 0) return;
+        addLocal(name);
+    }
+
+    private void addLocal(String name) {
+        current.locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    // The value on top of the stack becomes the variable.
+    private void defineVariable(int global) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitOp(DEFINE_GLOBAL, global);
+    }
+
+    private void namedVariable(String name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOp(GET_LOCAL, slot);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOp(GET_UPVALUE, upvalue);
+            return;
+        }
+
+        emitOp(GET_GLOBAL, identifierConstant(name));
+    }
+
+    private void setVariable(String name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOp(SET_LOCAL, slot);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOp(SET_UPVALUE, upvalue);
+            return;
+        }
+
+        emitOp(SET_GLOBAL, identifierConstant(name));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            Local local = state.locals.get(i);
+            if (local.depth != -1 && local.name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void emitWord(int word) {
+        current.function.chunk.write(word, line);
+    }
+
+    private void emitOp(int op) {
+        emitWord(op);
+        adjustStack(STACK_EFFECT[op]);
+    }
+
+    private void adjustStack(int effect) {
+        current.stackDepth += effect;
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emitOp(int op, int operand) {
+        emitOp(op);
+        emitWord(operand);
+    }
+
+    private void emitInvoke(int op, int name, int argCount) {
+        emitOp(op, name);
+        emitWord(argCount);
+        adjustStack(-argCount);
+    }
+
+    private int emitJump(int op) {
+        emitOp(op, 0);
+        return current.function.chunk.count - 1;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        chunk.code[offset] = chunk.count - offset - 1;
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(LOOP, 0);
+        Chunk chunk = current.function.chunk;
+        chunk.code[chunk.count - 1] = chunk.count - loopStart;
+    }
+}
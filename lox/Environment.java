@@ -1,54 +1,157 @@
 package craftinginterpreter.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
-    final Environment enclosing;
+    private static final Object[] EMPTY = {};
+
+    // Blocks run without allocating a frame, printed by --env-stats.
+    static long avoided = 0;
+
+    Environment enclosing;
+    // Upvalues of the function the frame belongs to. A function's frame
+    // has no enclosing frame, it reaches the locals of enclosing functions
+    // it uses through these.
+    Upvalue[] upvalues;
+
+    // Globals are late bound, each in the cell for its name, which uses of
+    // the name are linked to when they are resolved. Every other scope is a
+    // frame of slots, numbered by the Resolver in declaration order.
+    private final Map<String, Global> values;
+    private Object[] slots = EMPTY;
+    private int count = 0;
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
     }
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        this.upvalues = enclosing.upvalues;
+        values = null;
+    }
+    Environment(Upvalue[] upvalues) {
+        this.enclosing = null;
+        this.upvalues = upvalues;
+        values = null;
     }
 
-    private final Map<String, Object> values = new HashMap<>();    
-
+    // Locals are declared in the same order the Resolver numbered them, so
+    // defining one just takes the next free slot.
     void define(String name, Object value) {
-        values.put(name, value);
+        if (values != null) {
+            global(name).value = value;
+            return;
+        }
+
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, count * 2));
+        }
+        slots[count++] = value;
+    }
+
+    // Makes the released frame of a block that has finished the frame of a
+    // new one.
+    void reuse(Environment enclosing) {
+        this.enclosing = enclosing;
+        this.upvalues = enclosing.upvalues;
+    }
+
+    // Empties the frame of a block that has finished, so that a frame kept
+    // for reuse holds on to none of the values it had.
+    void release() {
+        Arrays.fill(slots, 0, count, null);
+        count = 0;
+        enclosing = null;
+        upvalues = null;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+    // Defines a local in the slot the Resolver gave it, or a global by name
+    // if it has none.
+    void define(String name, int slot, Object value) {
+        if (slot < 0) {
+            define(name, value);
             return;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        reserve(slot);
+        slots[slot] = value;
+    }
+
+    // Defines a function or class. When the Resolver found that its own
+    // closures capture it, they did so as they were created, before it
+    // existed, and the slot holds their Upvalue, which gets the value.
+    void define(String name, int slot, boolean captured, Object value) {
+        if (captured) {
+            ((Upvalue)slots[slot]).value = value;
+        } else {
+            define(name, slot, value);
         }
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    private void reserve(int slot) {
+        if (slot >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, Math.max(slot + 1, slots.length * 2)));
+        }
+        if (slot >= count) count = slot + 1;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    // The upvalues for a new closure, from the locals it captures here. A
+    // depth of -1 is an upvalue of this frame's own function.
+    Upvalue[] capture(Interpreter.Local[] captures) {
+        Upvalue[] upvalues = new Upvalue[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            upvalues[i] = capture(captures[i].depth, captures[i].slot);
+        }
+        return upvalues;
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    private Upvalue capture(int distance, int slot) {
+        if (distance < 0) return upvalues[slot];
+
+        Environment frame = ancestor(distance);
+        frame.reserve(slot);
+        Object value = frame.slots[slot];
+        if (value instanceof Upvalue) return (Upvalue)value;
+
+        Upvalue upvalue = new Upvalue(value);
+        frame.slots[slot] = upvalue;
+        return upvalue;
+    }
+
+    // The cell of a global, a new undefined one if the name has none yet.
+    Global global(String name) {
+        Global global = values.get(name);
+        if (global == null) {
+            global = new Global();
+            values.put(name, global);
         }
+        return global;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    // A local of this function, or with a distance of -1, an upvalue.
+    void assignAt(int distance, int slot, Object value) {
+        if (distance < 0) {
+            upvalues[slot].value = value;
+            return;
+        }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");  
+        Object[] frame = ancestor(distance).slots;
+        if (frame[slot] instanceof Upvalue) {
+            ((Upvalue)frame[slot]).value = value;
+        } else {
+            frame[slot] = value;
+        }
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        if (distance < 0) return upvalues[slot].value;
+
+        Object value = ancestor(distance).slots[slot];
+        if (value instanceof Upvalue) return ((Upvalue)value).value;
+        return value;
     }
 
     Environment ancestor(int distance) {
@@ -16,11 +16,12 @@ abstract class Expr {
         R visitThisExpr(This expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
-        R visitConditionalExpr(Conditional expr);
     }
     static class Assign extends Expr {
         final Token name;
         final Expr value;
+        Interpreter.Local local = null;
+        Global global = null;
 
         Assign(Token name, Expr value) {
             this.name = name;
@@ -52,6 +53,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        InlineCache.Call cache = new InlineCache.Call();
 
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
@@ -67,6 +69,7 @@ abstract class Expr {
     static class Get extends Expr {
         final Expr object;
         final Token name;
+        InlineCache.Get cache = new InlineCache.Get();
 
         Get(Expr object, Token name) {
             this.object = object;
@@ -122,6 +125,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        InlineCache.Set cache = new InlineCache.Set();
 
         Set(Expr object, Token name, Expr value) {
             this.object = object;
@@ -137,6 +141,8 @@ abstract class Expr {
     static class Super extends Expr {
         final Token keyword;
         final Token method;
+        Interpreter.Local local = null;
+        Interpreter.Local receiver = null;
 
         Super(Token keyword, Token method) {
             this.keyword = keyword;
@@ -150,6 +156,7 @@ abstract class Expr {
     }
     static class This extends Expr {
         final Token keyword;
+        Interpreter.Local local = null;
 
         This(Token keyword) {
             this.keyword = keyword;
@@ -176,6 +183,8 @@ abstract class Expr {
     }
     static class Variable extends Expr {
         final Token name;
+        Interpreter.Local local = null;
+        Global global = null;
 
         Variable(Token name) {
             this.name = name;
@@ -186,22 +195,6 @@ abstract class Expr {
             return visitor.visitVariableExpr(this);
         }
     }
-    static class Conditional extends Expr {
-        final Expr base;
-        final Expr left;
-        final Expr right;
-
-        Conditional(Expr base, Expr left, Expr right) {
-            this.base = base;
-            this.left = left;
-            this.right = right;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitConditionalExpr(this);
-        }
-    }
 
     abstract <R> R accept(Visitor<R> visitor);
 }
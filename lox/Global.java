@@ -0,0 +1,27 @@
+package craftinginterpreter.lox;
+
+// The cell of a global variable. The global scope has one for each name,
+// made the first time the Resolver sees a use of the name or the name is
+// defined, and every use of the name holds the same one. Reading or
+// assigning a global is then a field access rather than a lookup by name,
+// and redefining it at the REPL changes the value every use already sees.
+final class Global {
+    // The value of a cell whose name hasn't been defined yet.
+    private static final Object UNDEFINED = new Object();
+
+    Object value = UNDEFINED;
+
+    Object get(Token name) {
+        if (value == UNDEFINED) throw undefined(name);
+        return value;
+    }
+
+    void assign(Token name, Object value) {
+        if (this.value == UNDEFINED) throw undefined(name);
+        this.value = value;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+}
@@ -0,0 +1,226 @@
+package craftinginterpreter.lox;
+
+import java.util.List;
+
+// Caches for the tree-walker's property and call sites, kept on the Expr
+// nodes. A cache remembers what the lookup found for the last few receiver
+// shapes (or callees) it has seen. Up to LIMIT of them it answers from the
+// cache; a site that sees more is megamorphic and always does the full
+// lookup from then on.
+final class InlineCache {
+    static final int LIMIT = 4;
+
+    private InlineCache() {}
+
+    // Whether the sites count into the Stats below. Set by --cache-stats,
+    // so that otherwise a lookup doesn't pay for the counting.
+    static boolean counting = false;
+
+    // Totals over all sites of a kind, printed by --cache-stats.
+    static final class Stats {
+        final String kind;
+        long hits = 0;
+        long misses = 0;
+        long megamorphic = 0;
+
+        Stats(String kind) {
+            this.kind = kind;
+        }
+
+        @Override
+        public String toString() {
+            long total = hits + misses + megamorphic;
+            double rate = total == 0 ? 0 : 100.0 * hits / total;
+            return String.format("%-4s %12d hits %10d misses %10d megamorphic  %6.2f%% hit rate",
+                    kind, hits, misses, megamorphic, rate);
+        }
+    }
+
+    static final Stats GET = new Stats("get");
+    static final Stats SET = new Stats("set");
+    static final Stats CALL = new Stats("call");
+
+    static void printStats() {
+        System.err.println(GET);
+        System.err.println(SET);
+        System.err.println(CALL);
+    }
+
+    // Property reads. An entry is either a field of a shape, or, for a shape
+    // without the field, a method of a class.
+    static final class Get {
+        private final Shape[] shapes = new Shape[LIMIT];
+        private final LoxClass[] classes = new LoxClass[LIMIT];
+        private final int[] offsets = new int[LIMIT];
+        private final LoxFunction[] methods = new LoxFunction[LIMIT];
+        // Number of entries, or -1 once the site is megamorphic.
+        private int size = 0;
+
+        Object get(LoxInstance instance, Token name) {
+            int entry = lookup(instance, name);
+            if (entry < 0) return instance.get(name);
+            if (offsets[entry] >= 0) return instance.values[offsets[entry]];
+            return methods[entry].bind(instance);
+        }
+
+        // The method the property names, or null if it is a field.
+        LoxFunction method(LoxInstance instance, Token name) {
+            int entry = lookup(instance, name);
+            if (entry >= 0) return methods[entry];
+
+            if (instance.shape.offset(name.lexeme) >= 0) return null;
+            return instance.klass.findMethod(name.lexeme);
+        }
+
+        // Index of the entry for the instance, or -1 when the site is
+        // megamorphic. Throws if the instance has no such property.
+        private int lookup(LoxInstance instance, Token name) {
+            Shape shape = instance.shape;
+            for (int i = 0; i < size; i++) {
+                if (shapes[i] == shape && (offsets[i] >= 0 || classes[i] == instance.klass)) {
+                    if (counting) GET.hits++;
+                    return i;
+                }
+            }
+
+            if (size < 0) {
+                if (counting) GET.megamorphic++;
+            } else {
+                if (counting) GET.misses++;
+            }
+
+            int offset = shape.offset(name.lexeme);
+            LoxFunction method = offset < 0 ? instance.klass.findMethod(name.lexeme) : null;
+            if (offset < 0 && method == null) {
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+            }
+
+            if (size < 0) return -1;
+            if (size == LIMIT) {
+                size = -1;
+                return -1;
+            }
+
+            shapes[size] = shape;
+            classes[size] = instance.klass;
+            offsets[size] = offset;
+            methods[size] = method;
+            return size++;
+        }
+    }
+
+    // Property writes. An entry maps a shape to the offset of the field and
+    // the shape the instance has after the write, which differs when the
+    // write adds the field.
+    static final class Set {
+        private final Shape[] shapes = new Shape[LIMIT];
+        private final Shape[] targets = new Shape[LIMIT];
+        private final int[] offsets = new int[LIMIT];
+        // Number of entries, or -1 once the site is megamorphic.
+        private int size = 0;
+
+        void set(LoxInstance instance, Token name, Object value) {
+            Shape shape = instance.shape;
+            for (int i = 0; i < size; i++) {
+                if (shapes[i] == shape) {
+                    if (counting) SET.hits++;
+                    instance.store(offsets[i], targets[i], value);
+                    return;
+                }
+            }
+
+            if (size < 0) {
+                if (counting) SET.megamorphic++;
+                instance.set(name, value);
+                return;
+            }
+
+            if (counting) SET.misses++;
+            if (size == LIMIT) {
+                size = -1;
+                instance.set(name, value);
+                return;
+            }
+
+            int offset = shape.offset(name.lexeme);
+            shapes[size] = shape;
+            targets[size] = offset >= 0 ? shape : shape.with(name.lexeme);
+            offsets[size] = offset >= 0 ? offset : shape.size();
+            instance.store(offsets[size], targets[size], value);
+            size++;
+        }
+    }
+
+    // Call sites. An entry is keyed on the declaration of a function, which
+    // every closure and bound method of it share, or on a class or native
+    // callee itself, and records what the call comes down to: invoking the
+    // function on its receiver, or making an instance of the class and
+    // running its initializer. A hit does that directly rather than going
+    // through LoxCallable.
+    static final class Call {
+        private final Object[] keys = new Object[LIMIT];
+        private final int[] arities = new int[LIMIT];
+        // The class to instantiate, for an entry that is one.
+        private final LoxClass[] classes = new LoxClass[LIMIT];
+        private final LoxFunction[] initializers = new LoxFunction[LIMIT];
+        // Number of entries, or -1 once the site is megamorphic.
+        private int size = 0;
+
+        Object call(Interpreter interpreter, LoxCallable callee, List<Object> arguments, Token paren) {
+            LoxFunction function = callee instanceof LoxFunction ? (LoxFunction)callee : null;
+            Object key = function != null ? function.declaration : callee;
+            for (int i = 0; i < size; i++) {
+                if (keys[i] != key) continue;
+
+                if (counting) CALL.hits++;
+                checkArity(arities[i], arguments, paren);
+                if (function != null) return function.invoke(interpreter, function.receiver, arguments);
+                if (classes[i] == null) return callee.call(interpreter, arguments);
+
+                LoxInstance instance = new LoxInstance(classes[i]);
+                if (initializers[i] != null) initializers[i].invoke(interpreter, instance, arguments);
+                return instance;
+            }
+
+            if (size < 0) {
+                if (counting) CALL.megamorphic++;
+            } else if (size == LIMIT) {
+                if (counting) CALL.misses++;
+                size = -1;
+            } else {
+                if (counting) CALL.misses++;
+                keys[size] = key;
+                arities[size] = callee.arity();
+                if (callee instanceof LoxClass) {
+                    classes[size] = (LoxClass)callee;
+                    initializers[size] = classes[size].initializer;
+                }
+                size++;
+            }
+
+            checkArity(callee.arity(), arguments, paren);
+            return callee.call(interpreter, arguments);
+        }
+
+        // Checks the arguments for a call the interpreter makes itself, to a
+        // function it has already resolved.
+        static void check(LoxFunction function, List<Object> arguments, Token paren) {
+            checkArity(function.arity(), arguments, paren);
+        }
+
+        // A method call on a receiver, without binding the method. The Get
+        // cache has already found the method.
+        static Object invoke(Interpreter interpreter, LoxFunction method, LoxInstance receiver,
+                List<Object> arguments, Token paren) {
+            checkArity(method.arity(), arguments, paren);
+            return method.invoke(interpreter, receiver, arguments);
+        }
+
+        private static void checkArity(int arity, List<Object> arguments, Token paren) {
+            if (arguments.size() != arity) {
+                throw new RuntimeError(paren, "Expected " + arity +
+                        " arguments but got " + arguments.size());
+            }
+        }
+    }
+}
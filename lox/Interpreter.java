@@ -1,19 +1,66 @@
 package craftinginterpreter.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
 
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Frames of finished blocks that no closure can capture, the ones the
+    // Resolver marks reusable. A loop over such a block reuses the same
+    // frame on every iteration instead of allocating a new one.
+    private Environment[] spareFrames = new Environment[8];
+    private int spareCount = 0;
+
+    // Where the Resolver found a local variable: how many frames out it is
+    // and its slot in that frame. Locals of enclosing functions are reached
+    // through upvalues instead, with a depth of -1 and the upvalue's index
+    // as the slot. The Resolver leaves one on each variable, assignment,
+    // "this" and "super" node, or null there for a global.
+    static class Local {
+        final int depth;
+        final int slot;
+
+        Local(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+    }
+
+    // How a statement finished. A return or break is passed back up through
+    // the enclosing statements instead of being thrown; the value of a
+    // return waits in returnValue for the function call to pick it up.
+    // A TAIL_CALL leaves the function to call next in the tail fields, and
+    // LoxFunction.invoke runs it in place of the one that returned.
+    enum Completion {
+        NORMAL,
+        BREAK,
+        RETURN,
+        TAIL_CALL
+    }
+
+    Object returnValue = null;
+    LoxFunction tailFunction = null;
+    LoxInstance tailReceiver = null;
+    List<Object> tailArguments = null;
+
+    // Lox calls currently on the Java stack, and how many may be.
+    private int depth = 0;
+    int maxDepth = Integer.MAX_VALUE;
 
-    private static class BreakError extends RuntimeException {}
-    private BreakError error() {
-        return new BreakError();
+    // The operators of the left-leaning chains being evaluated, innermost
+    // last. Shared by nested chains, each working above where it started.
+    private Expr.Binary[] chain = new Expr.Binary[16];
+    private int chainSize = 0;
+
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
 
@@ -37,11 +84,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object value = evaluate(expr.value);
         //environment.assign(expr.name, value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        Local local = expr.local;
+        if (local != null) {
+            environment.assignAt(local.depth, local.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            expr.global.assign(expr.name, value);
         }
 
         return value;
@@ -49,12 +96,41 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.left instanceof Expr.Binary) return evaluateChain(expr);
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr, left, right);
+    }
+
+    // A chain like a + b + c + ... goes down its left operands by a loop
+    // rather than a call per operator, so its length is not limited by the
+    // Java stack.
+    private Object evaluateChain(Expr.Binary expr) {
+        int base = chainSize;
+        try {
+            Expr left = expr;
+            while (left instanceof Expr.Binary) {
+                if (chainSize == chain.length) chain = Arrays.copyOf(chain, chainSize * 2);
+                chain[chainSize++] = (Expr.Binary)left;
+                left = ((Expr.Binary)left).left;
+            }
+
+            Object value = evaluate(left);
+            while (chainSize > base) {
+                Expr.Binary binary = chain[--chainSize];
+                value = binary(binary, value, evaluate(binary.right));
+            }
+            return value;
+        } finally {
+            chainSize = base;
+        }
+    }
+
+    private Object binary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case GREATER:
                 checkNumberOperands(expr.operator, left, right);
-                System.out.println("moon");
                 return (double)left > (double)right;
             case GREATER_EQUAL:
                 checkNumberOperands(expr.operator, left, right);
@@ -80,12 +156,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 }
                 return (double)left / (double)right;
 
-            case BANG: return !isEqual(left, right);
+            case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
 
-                              // Challenge from (Parsing Expressions).
-            case COMMA: return right;
-
             case PLUS:
                         if (left instanceof Double && right instanceof Double) 
                             return (double)left + (double)right;
@@ -107,30 +180,71 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        enterCall(expr.paren);
+        try {
+            if (expr.callee instanceof Expr.Get) {
+                return invokeMethod(expr, (Expr.Get)expr.callee);
+            }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+            return call(expr, evaluate(expr.callee));
+        } finally {
+            exitCall();
         }
+    }
+
+    void enterCall(Token paren) {
+        if (++depth > maxDepth) {
+            depth--;
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+    }
+
+    void exitCall() {
+        depth--;
+    }
+
+    private Object call(Expr.Call expr, Object callee) {
+        List<Object> arguments = evaluateArguments(expr);
 
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call funcitons and classes");
         }
 
-        LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() +
-                    " arguments but got " + arguments.size());
+        return expr.cache.call(this, (LoxCallable)callee, arguments, expr.paren);
+    }
+
+    // obj.method(...) hands the receiver straight to the method instead of
+    // binding it first, so the call allocates no bound method.
+    private Object invokeMethod(Expr.Call expr, Expr.Get get) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instrances have properties.");
+        }
+
+        LoxInstance instance = (LoxInstance)object;
+        LoxFunction method = get.cache.method(instance, get.name);
+        if (method == null) {
+            // A field, which may still hold something callable.
+            return call(expr, instance.get(get.name));
         }
-        return function.call(this, arguments); 
+
+        List<Object> arguments = evaluateArguments(expr);
+        return InlineCache.Call.invoke(this, method, instance, arguments, expr.paren);
+    }
+
+    private List<Object> evaluateArguments(Expr.Call expr) {
+        List<Object> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+        return arguments;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance)object).get(expr.name);
+            return expr.cache.get((LoxInstance)object, expr.name);
         }
 
         throw new RuntimeError(expr.name, "Only instrances have properties.");
@@ -168,15 +282,16 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        expr.cache.set((LoxInstance)object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(distance-1, "this");
+        Local superLocal = expr.local;
+        Local thisLocal = expr.receiver;
+        LoxClass superclass = (LoxClass)environment.getAt(superLocal.depth, superLocal.slot);
+        LoxInstance object = (LoxInstance)environment.getAt(thisLocal.depth, thisLocal.slot);
 
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
         if (method == null) {
@@ -188,7 +303,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.local, null);
     }
 
     @Override
@@ -215,23 +330,53 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 "Variable '"+expr.name.lexeme+"' not initialized.");
         return environment.get(expr.name);
         */
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.local, expr.global);
     }
 
-    // Implementation of ternary operator from (Parsing Expressions) challenge for forward compatability.
     @Override
-    public Object visitConditionalExpr(Expr.Conditional expr) {
-        return isTruthy(evaluate(expr.base)) ? evaluate(expr.left) : evaluate(expr.right);
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.inline) {
+            Environment.avoided++;
+            for (Stmt statement : stmt.statements) {
+                Completion completion = execute(statement);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        }
+
+        if (!stmt.reusable) {
+            return executeBlock(stmt.statements, new Environment(environment));
+        }
+
+        Environment frame = takeFrame(environment);
+        try {
+            return executeBlock(stmt.statements, frame);
+        } finally {
+            releaseFrame(frame);
+        }
     }
 
-    @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    // A frame for a reusable block, a spare one if there is any.
+    Environment takeFrame(Environment enclosing) {
+        if (spareCount == 0) return new Environment(enclosing);
+
+        Environment.avoided++;
+        Environment frame = spareFrames[--spareCount];
+        frame.reuse(enclosing);
+        return frame;
+    }
+
+    // Keeps the frame of a reusable block that has finished for the next one.
+    void releaseFrame(Environment frame) {
+        frame.release();
+        if (spareCount == spareFrames.length) {
+            spareFrames = Arrays.copyOf(spareFrames, spareCount * 2);
+        }
+        spareFrames[spareCount++] = frame;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -240,8 +385,6 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {
             environment = new Environment(environment);
             environment.define("super", superclass);
@@ -249,7 +392,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, environment.capture(method.captures),
+                    method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
 
@@ -257,90 +401,141 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) environment = environment.enclosing;
 
-        environment.assign(stmt.name, klass);
-        return null;
+        // Methods only capture the environment, so the class can be defined
+        // once it exists. This keeps it in the slot the Resolver gave it.
+        environment.define(stmt.name.lexeme, stmt.slot, stmt.selfCaptured, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, environment.capture(stmt.captures), false);
+        environment.define(stmt.name.lexeme, stmt.slot, stmt.selfCaptured, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elsebranch != null) {
-            execute(stmt.elsebranch);
+            return execute(stmt.elsebranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) return tailCall((Expr.Call)stmt.value);
+
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    // Evaluates the callee and arguments of a call in tail position. A Lox
+    // function is not called from here but handed back to the caller's
+    // invoke() loop, so tail calls don't grow the Java stack.
+    private Completion tailCall(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Get)) return tailCallValue(expr, evaluate(expr.callee));
+
+        Expr.Get get = (Expr.Get)expr.callee;
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instrances have properties.");
+        }
+
+        LoxInstance receiver = (LoxInstance)object;
+        LoxFunction method = get.cache.method(receiver, get.name);
+        if (method == null) return tailCallValue(expr, receiver.get(get.name));
+        return tailInvoke(expr, method, receiver);
+    }
+
+    private Completion tailCallValue(Expr.Call expr, Object callee) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            return tailInvoke(expr, function, function.receiver);
+        }
+
+        // Classes and native functions are called the usual way.
+        enterCall(expr.paren);
+        try {
+            returnValue = call(expr, callee);
+        } finally {
+            exitCall();
+        }
+        return Completion.RETURN;
+    }
+
+    private Completion tailInvoke(Expr.Call expr, LoxFunction function, LoxInstance receiver) {
+        prepareTailCall(function, receiver, evaluateArguments(expr), expr.paren);
+        return Completion.TAIL_CALL;
+    }
+
+    // Leaves a call in tail position in the tail fields, for the invoke()
+    // loop of the function returning to make. Shared by the engines.
+    void prepareTailCall(LoxFunction function, LoxInstance receiver, List<Object> arguments,
+            Token paren) {
+        InlineCache.Call.check(function, arguments, paren);
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailArguments = arguments;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new BreakError();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch (BreakError error) {
-                return null;
-            }
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion != Completion.NORMAL) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        environment.define(stmt.name.lexeme, stmt.slot, value);
+        return Completion.NORMAL;
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, Local local, Global global) {
+        if (local != null) {
+            return environment.getAt(local.depth, local.slot);
         } else {
-            return globals.get(name);
+            return global.get(name);
         }
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) {
             return (boolean)object;
@@ -348,7 +543,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
@@ -367,7 +562,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operands must be a number.");
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -381,31 +576,35 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+    public Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Completion completion = execute(statement);
+                if (completion != Completion.NORMAL) return completion;
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
-    private void execute(Stmt stmt) {
+    private Completion execute(Stmt stmt) {
         /* Challenge 1 of (Statements and States).
            if (stmt instanceof Stmt.Expression) {
            visitPrintStmt(new Stmt.Print(((Stmt.Expression)stmt).expression));
            return;
            }
            */
-        stmt.accept(this);
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    // Compiled code for the body of a function about to be called, or null
+    // to interpret it.
+    JvmCompiler.Code compiled(Stmt.Function declaration) {
+        return null;
     }
 
     void interpret(List<Stmt> statements) {
@@ -0,0 +1,496 @@
+package craftinginterpreter.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles the body of a Lox function to a JVM class, loaded as a hidden
+// class so it can be unloaded with the function. Variables stay in the
+// Environment chain, slot for slot where the tree-walker keeps them, so
+// closures over compiled and interpreted code see the same variables.
+// Objects the code needs (tokens for error reporting, the interpreter,
+// number literals) are handed to the instance as an array of constants.
+//
+// Anything the compiler does not handle makes compile() return null and
+// the function keeps running in the tree-walker.
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    interface Code {
+        Object run(Environment environment);
+    }
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String CODE = "craftinginterpreter/lox/JvmCompiler$Code";
+    private static final String ENVIRONMENT = "craftinginterpreter/lox/Environment";
+    private static final String GLOBAL = "craftinginterpreter/lox/Global";
+    private static final String INTERPRETER = "craftinginterpreter/lox/Interpreter";
+    private static final String RUNTIME = "craftinginterpreter/lox/JvmRuntime";
+    private static final String TOKEN = "craftinginterpreter/lox/Token";
+    private static final String FUNCTION = "craftinginterpreter/lox/Stmt$Function";
+    private static final String INSTANCE = "craftinginterpreter/lox/LoxInstance";
+    private static final String CALL_CACHE = "craftinginterpreter/lox/InlineCache$Call";
+    private static final String GET_CACHE = "craftinginterpreter/lox/InlineCache$Get";
+    private static final String SET_CACHE = "craftinginterpreter/lox/InlineCache$Set";
+
+    private static final String T_OBJECT = "L" + OBJECT + ";";
+    private static final String T_ENVIRONMENT = "L" + ENVIRONMENT + ";";
+    private static final String T_GLOBAL = "L" + GLOBAL + ";";
+    private static final String T_TOKEN = "L" + TOKEN + ";";
+    private static final String T_INSTANCE = "L" + INSTANCE + ";";
+    private static final String T_CALL_CACHE = "L" + CALL_CACHE + ";";
+    private static final String BINARY = "(" + T_TOKEN + T_OBJECT + T_OBJECT + ")" + T_OBJECT;
+
+    private final Interpreter interpreter;
+    private final ClassFile file;
+    private final ClassFile.Code code;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+    // JVM local holding the Environment of the scope being compiled.
+    private int environment = 1;
+    // Jumps to patch to the end of the innermost loop.
+    private List<Integer> breaks = null;
+
+    private JvmCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        file = new ClassFile("craftinginterpreter/lox/JvmCode", OBJECT, CODE);
+        file.field(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "constants", "[" + T_OBJECT);
+
+        ClassFile.Code init = file.method(ClassFile.ACC_PUBLIC, "<init>", "([" + T_OBJECT + ")V", 2);
+        init.load(0);
+        init.op2(ClassFile.INVOKESPECIAL, file.methodRef(OBJECT, "<init>", "()V"), -1);
+        init.load(0);
+        init.load(1);
+        init.op2(ClassFile.PUTFIELD, file.fieldRef("craftinginterpreter/lox/JvmCode",
+                    "constants", "[" + T_OBJECT), -2);
+        init.op(ClassFile.RETURN, 0);
+
+        code = file.method(ClassFile.ACC_PUBLIC, "run", "(" + T_ENVIRONMENT + ")" + T_OBJECT, 2);
+    }
+
+    // Returns null if the body uses something that can't be compiled.
+    static Code compile(Interpreter interpreter, Stmt.Function function) {
+        JvmCompiler compiler = new JvmCompiler(interpreter);
+        try {
+            for (Stmt statement : function.body) {
+                compiler.compile(statement);
+            }
+            compiler.code.op(ClassFile.ACONST_NULL, 1);
+            compiler.code.op(ClassFile.ARETURN, -1);
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(compiler.file.toByteArray(), true);
+            return (Code)lookup.lookupClass()
+                .getConstructor(Object[].class)
+                .newInstance((Object)compiler.constants.toArray());
+        } catch (Unsupported | IllegalStateException | LinkageError | ReflectiveOperationException error) {
+            return null;
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Pushes constants[index], cast to type unless it is used as an Object.
+    private void constant(Object value, String type) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+
+        code.load(0);
+        code.op2(ClassFile.GETFIELD, file.fieldRef("craftinginterpreter/lox/JvmCode",
+                    "constants", "[" + T_OBJECT), 0);
+        code.pushInt(index);
+        code.op(ClassFile.AALOAD, -1);
+        if (!type.equals(OBJECT)) code.op2(ClassFile.CHECKCAST, file.classRef(type), 0);
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor, int effect) {
+        code.op2(ClassFile.INVOKESTATIC, file.methodRef(owner, name, descriptor), effect);
+    }
+
+    private void invokeVirtual(String owner, String name, String descriptor, int effect) {
+        code.op2(ClassFile.INVOKEVIRTUAL, file.methodRef(owner, name, descriptor), effect);
+    }
+
+    private void isTruthy() {
+        invokeStatic(INTERPRETER, "isTruthy", "(" + T_OBJECT + ")Z", 0);
+    }
+
+    private void variable(Interpreter.Local local, Global global, Token name) {
+        if (local == null) {
+            constant(global, GLOBAL);
+            constant(name, TOKEN);
+            invokeVirtual(GLOBAL, "get", "(" + T_TOKEN + ")" + T_OBJECT, -1);
+            return;
+        }
+
+        code.load(environment);
+        code.pushInt(local.depth);
+        code.pushInt(local.slot);
+        invokeVirtual(ENVIRONMENT, "getAt", "(II)" + T_OBJECT, -2);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.inline) {
+            for (Stmt statement : stmt.statements) {
+                compile(statement);
+            }
+            return null;
+        }
+
+        int enclosing = environment;
+        code.op2(ClassFile.NEW, file.classRef(ENVIRONMENT), 1);
+        code.op(ClassFile.DUP, 1);
+        code.load(enclosing);
+        code.op2(ClassFile.INVOKESPECIAL, file.methodRef(ENVIRONMENT, "<init>",
+                    "(" + T_ENVIRONMENT + ")V"), -2);
+        environment = code.newLocal();
+        code.store(environment);
+
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+
+        environment = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported("class declaration");
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(ClassFile.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        code.load(environment);
+        code.pushInt(stmt.slot);
+        constant(stmt, FUNCTION);
+        invokeStatic(RUNTIME, "defineFunction", "(" + T_ENVIRONMENT + "IL" + FUNCTION + ";)V", -3);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        isTruthy();
+        int elseJump = code.jump(ClassFile.IFEQ, -1);
+        compile(stmt.thenBranch);
+
+        if (stmt.elsebranch == null) {
+            code.patch(elseJump);
+            return null;
+        }
+
+        int endJump = code.jump(ClassFile.GOTO, 0);
+        code.patch(elseJump);
+        compile(stmt.elsebranch);
+        code.patch(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        invokeStatic(RUNTIME, "print", "(" + T_OBJECT + ")V", -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            call((Expr.Call)stmt.value, true);
+        } else if (stmt.value == null) {
+            code.op(ClassFile.ACONST_NULL, 1);
+        } else {
+            compile(stmt.value);
+        }
+        code.op(ClassFile.ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        breaks.add(code.jump(ClassFile.GOTO, 0));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        List<Integer> enclosing = breaks;
+        breaks = new ArrayList<>();
+
+        int start = code.position();
+        compile(stmt.condition);
+        isTruthy();
+        int exitJump = code.jump(ClassFile.IFEQ, -1);
+        compile(stmt.body);
+        code.jumpBack(ClassFile.GOTO, start, 0);
+
+        code.patch(exitJump);
+        for (int jump : breaks) code.patch(jump);
+        breaks = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        code.load(environment);
+        code.op2(ClassFile.LDC_W, file.string(stmt.name.lexeme), 1);
+        code.pushInt(stmt.slot);
+        if (stmt.initializer == null) {
+            code.op(ClassFile.ACONST_NULL, 1);
+        } else {
+            compile(stmt.initializer);
+        }
+        invokeVirtual(ENVIRONMENT, "define", "(Ljava/lang/String;I" + T_OBJECT + ")V", -4);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        Interpreter.Local local = expr.local;
+        if (local == null) {
+            constant(expr.global, GLOBAL);
+            constant(expr.name, TOKEN);
+            compile(expr.value);
+            invokeStatic(RUNTIME, "assign",
+                    "(" + T_GLOBAL + T_TOKEN + T_OBJECT + ")" + T_OBJECT, -2);
+            return null;
+        }
+
+        code.load(environment);
+        code.pushInt(local.depth);
+        code.pushInt(local.slot);
+        compile(expr.value);
+        invokeStatic(RUNTIME, "assignAt", "(" + T_ENVIRONMENT + "II" + T_OBJECT + ")" + T_OBJECT, -3);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        String operation;
+        switch (expr.operator.type) {
+            case GREATER: operation = "greater"; break;
+            case GREATER_EQUAL: operation = "greaterEqual"; break;
+            case LESS: operation = "less"; break;
+            case LESS_EQUAL: operation = "lessEqual"; break;
+            case MINUS: operation = "subtract"; break;
+            case STAR: operation = "multiply"; break;
+            case SLASH: operation = "divide"; break;
+            case PLUS: operation = "add"; break;
+
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                compile(expr.left);
+                compile(expr.right);
+                invokeStatic(RUNTIME, expr.operator.type == TokenType.EQUAL_EQUAL ? "equal" : "notEqual",
+                        "(" + T_OBJECT + T_OBJECT + ")" + T_OBJECT, -1);
+                return null;
+
+            default:
+                throw new Unsupported("operator " + expr.operator.lexeme);
+        }
+
+        constant(expr.operator, TOKEN);
+        compile(expr.left);
+        compile(expr.right);
+        invokeStatic(RUNTIME, operation, BINARY, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // A call, or with tail set one in tail position, which the runtime hands
+    // back to the invoke() loop.
+    private void call(Expr.Call expr, boolean tail) {
+        if (expr.callee instanceof Expr.Get) {
+            invoke(expr, (Expr.Get)expr.callee, tail);
+            return;
+        }
+
+        constant(interpreter, INTERPRETER);
+        constant(expr.paren, TOKEN);
+        constant(expr.cache, CALL_CACHE);
+        compile(expr.callee);
+        arguments(expr);
+        invokeStatic(RUNTIME, tail ? "tailCall" : "call", "(L" + INTERPRETER + ";" + T_TOKEN +
+                T_CALL_CACHE + T_OBJECT + "[" + T_OBJECT + ")" + T_OBJECT, -4);
+    }
+
+    // obj.method(...), which like the tree-walker looks the method up before
+    // the arguments are evaluated and hands the receiver straight to it. When
+    // the property is a field its value is called instead, with a null
+    // receiver.
+    private void invoke(Expr.Call expr, Expr.Get get, boolean tail) {
+        compile(get.object);
+        constant(get.name, TOKEN);
+        invokeStatic(RUNTIME, "receiver", "(" + T_OBJECT + T_TOKEN + ")" + T_INSTANCE, -1);
+        int receiver = code.newLocal();
+        code.store(receiver);
+
+        constant(get.cache, GET_CACHE);
+        code.load(receiver);
+        constant(get.name, TOKEN);
+        invokeStatic(RUNTIME, "method", "(L" + GET_CACHE + ";" + T_INSTANCE + T_TOKEN + ")" +
+                T_OBJECT, -2);
+        code.op(ClassFile.DUP, 1);
+        int methodJump = code.jump(ClassFile.IFNONNULL, -1);
+        int depth = code.stack();
+        code.op(ClassFile.POP, -1);
+        code.load(receiver);
+        constant(get.name, TOKEN);
+        invokeVirtual(INSTANCE, "get", "(" + T_TOKEN + ")" + T_OBJECT, -1);
+        code.op(ClassFile.ACONST_NULL, 1);
+        int endJump = code.jump(ClassFile.GOTO, 0);
+        code.patch(methodJump);
+        code.stack(depth);
+        code.load(receiver);
+        code.patch(endJump);
+
+        constant(interpreter, INTERPRETER);
+        constant(expr.paren, TOKEN);
+        constant(expr.cache, CALL_CACHE);
+        arguments(expr);
+        invokeStatic(RUNTIME, tail ? "tailInvoke" : "invoke", "(" + T_OBJECT + T_INSTANCE +
+                "L" + INTERPRETER + ";" + T_TOKEN + T_CALL_CACHE + "[" + T_OBJECT + ")" + T_OBJECT, -5);
+    }
+
+    // Pushes the arguments of a call as an Object[].
+    private void arguments(Expr.Call expr) {
+        code.pushInt(expr.arguments.size());
+        code.op2(ClassFile.ANEWARRAY, file.classRef(OBJECT), 0);
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            code.op(ClassFile.DUP, 1);
+            code.pushInt(i);
+            compile(expr.arguments.get(i));
+            code.op(ClassFile.AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        constant(expr.cache, GET_CACHE);
+        constant(expr.name, TOKEN);
+        compile(expr.object);
+        invokeStatic(RUNTIME, "get", "(L" + GET_CACHE + ";" + T_TOKEN + T_OBJECT + ")" + T_OBJECT, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ClassFile.ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            String name = (boolean)expr.value ? "TRUE" : "FALSE";
+            code.op2(ClassFile.GETSTATIC, file.fieldRef(BOOLEAN, name, "L" + BOOLEAN + ";"), 1);
+        } else if (expr.value instanceof String) {
+            code.op2(ClassFile.LDC_W, file.string((String)expr.value), 1);
+        } else {
+            constant(expr.value, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        code.op(ClassFile.DUP, 1);
+        isTruthy();
+        int opcode = expr.operator.type == TokenType.OR ? ClassFile.IFNE : ClassFile.IFEQ;
+        int endJump = code.jump(opcode, -1);
+        code.op(ClassFile.POP, -1);
+        compile(expr.right);
+        code.patch(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        constant(expr.name, TOKEN);
+        invokeStatic(RUNTIME, "instance", "(" + T_OBJECT + T_TOKEN + ")" + T_INSTANCE, -1);
+        constant(expr.cache, SET_CACHE);
+        constant(expr.name, TOKEN);
+        compile(expr.value);
+        invokeStatic(RUNTIME, "set", "(" + T_INSTANCE + "L" + SET_CACHE + ";" + T_TOKEN + T_OBJECT +
+                ")" + T_OBJECT, -3);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        Interpreter.Local superLocal = expr.local;
+        Interpreter.Local thisLocal = expr.receiver;
+        code.load(environment);
+        constant(expr.method, TOKEN);
+        code.pushInt(superLocal.depth);
+        code.pushInt(superLocal.slot);
+        code.pushInt(thisLocal.depth);
+        code.pushInt(thisLocal.slot);
+        invokeStatic(RUNTIME, "superMethod", "(" + T_ENVIRONMENT + T_TOKEN + "IIII)" + T_OBJECT, -5);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        variable(expr.local, null, expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            compile(expr.right);
+            invokeStatic(RUNTIME, "not", "(" + T_OBJECT + ")" + T_OBJECT, 0);
+            return null;
+        }
+
+        constant(expr.operator, TOKEN);
+        compile(expr.right);
+        invokeStatic(RUNTIME, "negate", "(" + T_TOKEN + T_OBJECT + ")" + T_OBJECT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        variable(expr.local, expr.global, expr.name);
+        return null;
+    }
+}
@@ -0,0 +1,17 @@
+package craftinginterpreter.lox;
+
+// The tree-walker, but functions that get called often are compiled to JVM
+// bytecode by JvmCompiler. A function the compiler can't handle stays
+// interpreted. The call count and the compiled code are kept on the
+// declaration, shared by all of its closures.
+class JvmInterpreter extends Interpreter {
+    private static final int COMPILE_THRESHOLD = 100;
+
+    @Override
+    JvmCompiler.Code compiled(Stmt.Function declaration) {
+        if (declaration.compiled == null && ++declaration.calls == COMPILE_THRESHOLD) {
+            declaration.compiled = JvmCompiler.compile(this, declaration);
+        }
+        return declaration.compiled;
+    }
+}
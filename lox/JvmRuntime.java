@@ -0,0 +1,198 @@
+package craftinginterpreter.lox;
+
+import java.util.Arrays;
+
+// Operations called from the JVM bytecode JvmCompiler generates. Each one
+// has the tree-walker's semantics and raises the same RuntimeError at the
+// same token, so compiled and interpreted code are indistinguishable.
+final class JvmRuntime {
+    private JvmRuntime() {}
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be a number.");
+    }
+
+    static Object greater(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static Object greaterEqual(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static Object less(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static Object lessEqual(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static Object subtract(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        if ((double)right == 0) {
+            throw new RuntimeError(operator, "Divide by zero Error.");
+        }
+        return (double)left / (double)right;
+    }
+
+    static Object add(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double)
+            return (double)left + (double)right;
+        if (left instanceof String && right instanceof String)
+            return (String)left + (String)right;
+        if (left instanceof String && right instanceof Double)
+            return (String)left + Interpreter.stringify(right);
+        if (left instanceof Double && right instanceof String)
+            return Interpreter.stringify(left) + (String)right;
+
+        throw new RuntimeError(operator, "Operands must be either numbers or strings.");
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static Object negate(Token operator, Object right) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double)right;
+    }
+
+    static Object assignAt(Environment environment, int depth, int slot, Object value) {
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+
+    static Object assign(Global global, Token name, Object value) {
+        global.assign(name, value);
+        return value;
+    }
+
+    static Object call(Interpreter interpreter, Token paren, InlineCache.Call cache,
+            Object callee, Object[] arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call funcitons and classes");
+        }
+
+        interpreter.enterCall(paren);
+        try {
+            return cache.call(interpreter, (LoxCallable)callee, Arrays.asList(arguments), paren);
+        } finally {
+            interpreter.exitCall();
+        }
+    }
+
+    // A call in tail position. A Lox function is left in the interpreter's
+    // tail fields and the compiled body returns LoxFunction.TAIL_CALL for the
+    // invoke() loop to make the call.
+    static Object tailCall(Interpreter interpreter, Token paren, InlineCache.Call cache,
+            Object callee, Object[] arguments) {
+        if (!(callee instanceof LoxFunction)) return call(interpreter, paren, cache, callee, arguments);
+
+        LoxFunction function = (LoxFunction)callee;
+        interpreter.prepareTailCall(function, function.receiver, Arrays.asList(arguments), paren);
+        return LoxFunction.TAIL_CALL;
+    }
+
+    // obj.method(...) is split in three, as the tree-walker looks the method
+    // up before it evaluates the arguments: the receiver, the method, or null
+    // if the property is a field, and then the call.
+    static LoxInstance receiver(Object object, Token name) {
+        if (object instanceof LoxInstance) return (LoxInstance)object;
+        throw new RuntimeError(name, "Only instrances have properties.");
+    }
+
+    static Object method(InlineCache.Get cache, LoxInstance instance, Token name) {
+        return cache.method(instance, name);
+    }
+
+    // Calls the method on the receiver, or with no receiver the value of
+    // the field.
+    static Object invoke(Object callee, LoxInstance receiver, Interpreter interpreter, Token paren,
+            InlineCache.Call cache, Object[] arguments) {
+        if (receiver == null) return call(interpreter, paren, cache, callee, arguments);
+
+        interpreter.enterCall(paren);
+        try {
+            return InlineCache.Call.invoke(interpreter, (LoxFunction)callee, receiver,
+                    Arrays.asList(arguments), paren);
+        } finally {
+            interpreter.exitCall();
+        }
+    }
+
+    static Object tailInvoke(Object callee, LoxInstance receiver, Interpreter interpreter,
+            Token paren, InlineCache.Call cache, Object[] arguments) {
+        if (receiver == null) return tailCall(interpreter, paren, cache, callee, arguments);
+
+        interpreter.prepareTailCall((LoxFunction)callee, receiver, Arrays.asList(arguments), paren);
+        return LoxFunction.TAIL_CALL;
+    }
+
+    static Object get(InlineCache.Get cache, Token name, Object object) {
+        if (object instanceof LoxInstance) {
+            return cache.get((LoxInstance)object, name);
+        }
+
+        throw new RuntimeError(name, "Only instrances have properties.");
+    }
+
+    // Set is split in two as the tree-walker checks the object before it
+    // evaluates the value.
+    static LoxInstance instance(Object object, Token name) {
+        if (object instanceof LoxInstance) return (LoxInstance)object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object set(LoxInstance object, InlineCache.Set cache, Token name, Object value) {
+        cache.set(object, name, value);
+        return value;
+    }
+
+    static Object superMethod(Environment environment, Token method,
+            int superDepth, int superSlot, int thisDepth, int thisSlot) {
+        LoxClass superclass = (LoxClass)environment.getAt(superDepth, superSlot);
+        LoxInstance object = (LoxInstance)environment.getAt(thisDepth, thisSlot);
+
+        LoxFunction function = superclass.findMethod(method.lexeme);
+        if (function == null) {
+            throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+        }
+
+        return function.bind(object);
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static void defineFunction(Environment environment, int slot, Stmt.Function declaration) {
+        LoxFunction function = new LoxFunction(declaration, environment.capture(declaration.captures), false);
+        environment.define(declaration.name.lexeme, slot, declaration.selfCaptured, function);
+    }
+}
@@ -3,30 +3,99 @@ package craftinginterpreter.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
+    private static boolean useVm = false;
+    private static boolean envStats = false;
+    private static boolean times = false;
+    // Java stack to reserve per Lox call with --max-depth, generous enough
+    // for the interpreter's frames and the expressions nested inside a call.
+    private static final long STACK_PER_CALL = 16 * 1024;
+    // Sources at least this many bytes long are scanned and parsed on
+    // separate threads.
+    private static final int PIPELINE_THRESHOLD = 1 << 20;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String script = null;
+        int maxDepth = 0;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--nodes")) {
+                interpreter = new NodeInterpreter();
+            } else if (arg.equals("--closures")) {
+                interpreter = new ClosureInterpreter();
+            } else if (arg.equals("--jvm")) {
+                interpreter = new JvmInterpreter();
+            } else if (arg.equals("--cache-stats")) {
+                InlineCache.counting = true;
+            } else if (arg.equals("--env-stats")) {
+                envStats = true;
+            } else if (arg.equals("--times")) {
+                times = true;
+            } else if (arg.equals("--max-depth") && i + 1 < args.length
+                    && args[i + 1].matches("[1-9][0-9]*")) {
+                maxDepth = Integer.parseInt(args[++i]);
+            } else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                System.out.println("Usage: jlox [--vm | --nodes | --closures | --jvm] [--cache-stats]"
+                        + " [--env-stats] [--times] [--max-depth calls] [script]");
+                System.exit(64);
+            }
+        }
+
+        if (maxDepth == 0) {
+            start(script);
+            return;
+        }
+
+        // The VM keeps its frames in arrays and only needs the limit. The
+        // interpreters nest Java calls for Lox calls, so they run on a
+        // thread whose stack is sized to fit the limit.
+        interpreter.maxDepth = maxDepth;
+        vm.maxFrames = maxDepth;
+        String path = script;
+        Thread thread = new Thread(null, () -> {
+            try {
+                start(path);
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }, "lox", maxDepth * STACK_PER_CALL);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void start(String script) throws IOException {
+        if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // The scanner reads the file's bytes where they are mapped, without
+        // copying or decoding them first.
+        try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+            run(new Scanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        }
+        if (InlineCache.counting) InlineCache.printStats();
+        if (envStats) System.err.println("env  " + Environment.avoided + " environments avoided");
         
         // Indicate an error in the exit code
         if (hadError) System.exit(65);
@@ -41,28 +110,47 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(new Scanner(line));
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static void run(Scanner scanner) {
+        long mark = System.nanoTime();
+        // Big sources are scanned on another thread while they are parsed.
+        TokenCursor tokens = scanner.length() < PIPELINE_THRESHOLD ? scanner.cursor() : TokenBuffer.start(scanner);
 
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
+        mark = time("parse", mark);
         
         // Stop if there was a syntax error.
         if (hadError) return;
 
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
+        mark = time("resolve", mark);
 
         if (hadError) return;
 
+        statements = new Optimizer().optimize(statements);
+        mark = time("optimize", mark);
+
         //System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(statements);
+        if (useVm) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+        time("run", mark);
+    }
+
+    // With --times, prints how long a phase took since the mark and
+    // returns the next mark.
+    private static long time(String phase, long mark) {
+        long now = System.nanoTime();
+        if (times) System.err.printf("time %-8s %8d ms%n", phase, (now - mark) / 1000000);
+        return now;
     }
 
     static void error(int line, String message) {
@@ -1,37 +1,40 @@
 package craftinginterpreter.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
+    // Every method the class responds to, inherited ones included, so a
+    // lookup never walks the superclass chain. Never changes once built.
     private final Map<String, LoxFunction> methods;
+    final LoxFunction initializer;
+    private final int arity;
     
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
-    }
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        Map<String, LoxFunction> table = new HashMap<>();
+        if (superclass != null) table.putAll(superclass.methods);
+        table.putAll(methods);
+        this.methods = table;
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
+        initializer = table.get("init");
+        arity = initializer == null ? 0 : initializer.arity();
+    }
 
-        return null;
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
@@ -39,9 +42,7 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
@@ -3,38 +3,75 @@ package craftinginterpreter.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    // What run() returns when the body ended in a tail call, which it left
+    // in the interpreter's tail fields.
+    static final Object TAIL_CALL = new Object();
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    final Stmt.Function declaration;
+    final Upvalue[] upvalues;
+    final boolean isInitializer;
+    // The instance a method was bound to, null for plain functions and for
+    // methods as stored in their class.
+    final LoxInstance receiver;
+
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer,
+            LoxInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
+    // Only needed when a method is used as a value; calls through a property
+    // go straight to invoke().
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, instance);
     }
     
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-        }
+        return invoke(interpreter, receiver, arguments);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+    // A body that ends in a tail call hands back the function to call next,
+    // which then runs in this same loop instead of a nested Java call. Every
+    // engine's functions share the loop and only differ in how they run().
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        LoxFunction function = this;
+        for (;;) {
+            Object value = function.run(interpreter, receiver, arguments);
+            if (value != TAIL_CALL) return function.isInitializer ? receiver : value;
 
-            return returnValue.value;
+            function = interpreter.tailFunction;
+            receiver = interpreter.tailReceiver;
+            arguments = interpreter.tailArguments;
+            interpreter.tailFunction = null;
+            interpreter.tailReceiver = null;
+            interpreter.tailArguments = null;
         }
+    }
+
+    // Runs the body once and returns what it returned, or TAIL_CALL.
+    //
+    // A method's "this" is the first slot of its frame, followed by the
+    // parameters, so calling one needs no environment of its own for "this".
+    Object run(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        Environment environment = new Environment(upvalues);
+        if (receiver != null) environment.define("this", receiver);
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        }
+
+        JvmCompiler.Code code = interpreter.compiled(declaration);
+        if (code != null) return code.run(environment);
 
-        if (isInitializer) return closure.getAt(0, "this");
+        Interpreter.Completion completion = interpreter.executeBlock(declaration.body, environment);
+        if (completion == Interpreter.Completion.TAIL_CALL) return TAIL_CALL;
+        if (completion == Interpreter.Completion.RETURN) return interpreter.takeReturnValue();
         return null;
     }
 
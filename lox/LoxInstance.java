@@ -1,19 +1,23 @@
 package craftinginterpreter.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] EMPTY = {};
+
+    final LoxClass klass;
+    // Field values, laid out as described by the shape.
+    Shape shape = Shape.EMPTY;
+    Object[] values = EMPTY;
 
     LoxInstance (LoxClass klass) {
         this.klass = klass;
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int offset = shape.offset(name.lexeme);
+        if (offset >= 0) {
+            return values[offset];
         }
 
         LoxFunction method = klass.findMethod(name.lexeme);
@@ -23,7 +27,23 @@ class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int offset = shape.offset(name.lexeme);
+        if (offset >= 0) {
+            values[offset] = value;
+            return;
+        }
+
+        store(shape.size(), shape.with(name.lexeme), value);
+    }
+
+    // Stores the value at an offset of the given shape, which is either the
+    // current shape or the one it transitions to by adding the field.
+    void store(int offset, Shape shape, Object value) {
+        if (offset == values.length) {
+            values = Arrays.copyOf(values, Math.max(2, offset * 2));
+        }
+        this.shape = shape;
+        values[offset] = value;
     }
 
     @Override
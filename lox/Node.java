@@ -0,0 +1,946 @@
+package craftinginterpreter.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Executable tree built from the resolved Expr/Stmt tree by NodeBuilder.
+//
+// Operator nodes start out uninitialized. The first time they run they look
+// at the operand types and replace themselves with a node specialized for
+// them, e.g. number + number. A specialized node only guards its guess; when
+// the guess breaks it replaces itself with the generic node, which never
+// specializes again.
+abstract class Node {
+    // Completion of a statement, the tree-walker's Interpreter.Completion.
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int RETURN = 2;
+    static final int TAIL_CALL = 3;
+
+    // Stores a node in the place its parent holds this one.
+    interface Slot {
+        void set(Node replacement);
+    }
+
+    // Where the parent holds this node, so that it can be replaced.
+    Slot slot = null;
+    // Set once the node has been rewritten. A recursive call may rewrite a
+    // node while an outer execution of it is still running; that execution
+    // then carries on with the node that took its place.
+    Node replacedBy = null;
+
+    <T extends Node> T adopt(T child, Slot slot) {
+        if (child != null) child.slot = slot;
+        return child;
+    }
+
+    <T extends Node> T[] adopt(T[] children) {
+        Node[] nodes = children;
+        for (int i = 0; i < nodes.length; i++) {
+            int index = i;
+            adopt(nodes[i], replacement -> nodes[index] = replacement);
+        }
+        return children;
+    }
+
+    // Swaps this node for the replacement in its parent.
+    <T extends Node> T replace(T replacement) {
+        replacement.slot = slot;
+        replacedBy = replacement;
+        slot.set(replacement);
+        return replacement;
+    }
+
+    static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be a number.");
+    }
+
+    abstract static class Expression extends Node {
+        abstract Object execute(Environment environment);
+    }
+
+    abstract static class Statement extends Node {
+        abstract int execute(Environment environment);
+    }
+
+    // Root of a top-level statement, so that it has a parent to be replaced in.
+    static class Root extends Node {
+        Statement body;
+
+        Root(Statement body) {
+            this.body = adopt(body, node -> this.body = (Statement)node);
+        }
+
+        int execute(Environment environment) {
+            return body.execute(environment);
+        }
+    }
+
+    static class Literal extends Expression {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value;
+        }
+    }
+
+    static class LocalRead extends Expression {
+        final int depth;
+        final int slot;
+
+        LocalRead(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.getAt(depth, slot);
+        }
+    }
+
+    static class GlobalRead extends Expression {
+        final Token name;
+        final Global global;
+
+        GlobalRead(Token name, Global global) {
+            this.name = name;
+            this.global = global;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return global.get(name);
+        }
+    }
+
+    static class LocalWrite extends Expression {
+        final int depth;
+        final int slot;
+        Expression value;
+
+        LocalWrite(int depth, int slot, Expression value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value, node -> this.value = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        }
+    }
+
+    static class GlobalWrite extends Expression {
+        final Token name;
+        final Global global;
+        Expression value;
+
+        GlobalWrite(Token name, Global global, Expression value) {
+            this.name = name;
+            this.global = global;
+            this.value = adopt(value, node -> this.value = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            global.assign(name, result);
+            return result;
+        }
+    }
+
+    abstract static class Binary extends Expression {
+        final Token operator;
+        Expression left;
+        Expression right;
+
+        Binary(Token operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = adopt(left, node -> this.left = (Expression)node);
+            this.right = adopt(right, node -> this.right = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object leftValue = left.execute(environment);
+            Object rightValue = right.execute(environment);
+            return executeWith(leftValue, rightValue);
+        }
+
+        abstract Object executeWith(Object leftValue, Object rightValue);
+
+        // Gives up on the specialization for good.
+        Object deoptimize(Object leftValue, Object rightValue) {
+            if (replacedBy != null) return ((Binary)replacedBy).executeWith(leftValue, rightValue);
+            return replace(new GenericBinary(operator, left, right))
+                    .executeWith(leftValue, rightValue);
+        }
+    }
+
+    static class UninitializedBinary extends Binary {
+        UninitializedBinary(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (replacedBy != null) return ((Binary)replacedBy).executeWith(leftValue, rightValue);
+            return replace(specialize(leftValue, rightValue)).executeWith(leftValue, rightValue);
+        }
+
+        private Binary specialize(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Double && rightValue instanceof Double) {
+                switch (operator.type) {
+                    case PLUS:          return new AddNumbers(operator, left, right);
+                    case MINUS:         return new SubtractNumbers(operator, left, right);
+                    case STAR:          return new MultiplyNumbers(operator, left, right);
+                    case SLASH:         return new DivideNumbers(operator, left, right);
+                    case GREATER:       return new GreaterNumbers(operator, left, right);
+                    case GREATER_EQUAL: return new GreaterEqualNumbers(operator, left, right);
+                    case LESS:          return new LessNumbers(operator, left, right);
+                    case LESS_EQUAL:    return new LessEqualNumbers(operator, left, right);
+                }
+            }
+
+            if (operator.type == TokenType.PLUS &&
+                    leftValue instanceof String && rightValue instanceof String) {
+                return new ConcatStrings(operator, left, right);
+            }
+
+            return new GenericBinary(operator, left, right);
+        }
+    }
+
+    abstract static class NumberBinary extends Binary {
+        NumberBinary(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        final Object executeWith(Object leftValue, Object rightValue) {
+            if (leftValue instanceof Double && rightValue instanceof Double) {
+                return compute((double)leftValue, (double)rightValue);
+            }
+            return deoptimize(leftValue, rightValue);
+        }
+
+        abstract Object compute(double left, double right);
+    }
+
+    static class AddNumbers extends NumberBinary {
+        AddNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left + right;
+        }
+    }
+
+    static class SubtractNumbers extends NumberBinary {
+        SubtractNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left - right;
+        }
+    }
+
+    static class MultiplyNumbers extends NumberBinary {
+        MultiplyNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left * right;
+        }
+    }
+
+    static class DivideNumbers extends NumberBinary {
+        DivideNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            if (right == 0) throw new RuntimeError(operator, "Divide by zero Error.");
+            return left / right;
+        }
+    }
+
+    static class GreaterNumbers extends NumberBinary {
+        GreaterNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left > right;
+        }
+    }
+
+    static class GreaterEqualNumbers extends NumberBinary {
+        GreaterEqualNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left >= right;
+        }
+    }
+
+    static class LessNumbers extends NumberBinary {
+        LessNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left < right;
+        }
+    }
+
+    static class LessEqualNumbers extends NumberBinary {
+        LessEqualNumbers(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object compute(double left, double right) {
+            return left <= right;
+        }
+    }
+
+    static class ConcatStrings extends Binary {
+        ConcatStrings(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object executeWith(Object leftValue, Object rightValue) {
+            if (leftValue instanceof String && rightValue instanceof String) {
+                return (String)leftValue + (String)rightValue;
+            }
+            return deoptimize(leftValue, rightValue);
+        }
+    }
+
+    // Same semantics as Interpreter.visitBinaryExpr.
+    static class GenericBinary extends Binary {
+        GenericBinary(Token operator, Expression left, Expression right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object executeWith(Object left, Object right) {
+            switch (operator.type) {
+                case GREATER:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left > (double)right;
+                case GREATER_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left >= (double)right;
+                case LESS:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left < (double)right;
+                case LESS_EQUAL:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left <= (double)right;
+                case MINUS:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left - (double)right;
+                case STAR:
+                    checkNumberOperands(operator, left, right);
+                    return (double)left * (double)right;
+                case SLASH:
+                    checkNumberOperands(operator, left, right);
+                    if ((double)right == 0) {
+                        throw new RuntimeError(operator, "Divide by zero Error.");
+                    }
+                    return (double)left / (double)right;
+                case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+                case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double)
+                        return (double)left + (double)right;
+                    if (left instanceof String && right instanceof String)
+                        return (String)left + (String)right;
+                    if (left instanceof String && right instanceof Double)
+                        return (String)left + Interpreter.stringify(right);
+                    if (left instanceof Double && right instanceof String)
+                        return Interpreter.stringify(left) + (String)right;
+
+                    throw new RuntimeError(operator, "Operands must be either numbers or strings.");
+            }
+
+            // Unreachable.
+            return null;
+        }
+    }
+
+    static class Not extends Expression {
+        Expression right;
+
+        Not(Expression right) {
+            this.right = adopt(right, node -> this.right = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return !Interpreter.isTruthy(right.execute(environment));
+        }
+    }
+
+    abstract static class Negate extends Expression {
+        final Token operator;
+        Expression right;
+
+        Negate(Token operator, Expression right) {
+            this.operator = operator;
+            this.right = adopt(right, node -> this.right = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return negate(right.execute(environment));
+        }
+
+        abstract Object negate(Object value);
+
+        Object rewrite(Negate replacement, Object value) {
+            if (replacedBy != null) return ((Negate)replacedBy).negate(value);
+            return replace(replacement).negate(value);
+        }
+    }
+
+    static class UninitializedNegate extends Negate {
+        UninitializedNegate(Token operator, Expression right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object negate(Object value) {
+            if (value instanceof Double) {
+                return rewrite(new NegateNumber(operator, right), value);
+            }
+            return rewrite(new GenericNegate(operator, right), value);
+        }
+    }
+
+    static class NegateNumber extends Negate {
+        NegateNumber(Token operator, Expression right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object negate(Object value) {
+            if (value instanceof Double) return -(double)value;
+            return rewrite(new GenericNegate(operator, right), value);
+        }
+    }
+
+    static class GenericNegate extends Negate {
+        GenericNegate(Token operator, Expression right) {
+            super(operator, right);
+        }
+
+        @Override
+        Object negate(Object value) {
+            if (!(value instanceof Double)) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+            return -(double)value;
+        }
+    }
+
+    static class Logical extends Expression {
+        final boolean isOr;
+        Expression left;
+        Expression right;
+
+        Logical(boolean isOr, Expression left, Expression right) {
+            this.isOr = isOr;
+            this.left = adopt(left, node -> this.left = (Expression)node);
+            this.right = adopt(right, node -> this.right = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = left.execute(environment);
+            if (Interpreter.isTruthy(value) == isOr) return value;
+            return right.execute(environment);
+        }
+    }
+
+    static class Call extends Expression {
+        final Token paren;
+        final Interpreter interpreter;
+        final InlineCache.Call cache = new InlineCache.Call();
+        Expression callee;
+        Expression[] arguments;
+
+        Call(Token paren, Interpreter interpreter, Expression callee, Expression[] arguments) {
+            this.paren = paren;
+            this.interpreter = interpreter;
+            this.callee = adopt(callee, node -> this.callee = (Expression)node);
+            this.arguments = adopt(arguments);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+            return call(function, evaluateArguments(environment));
+        }
+
+        // Runs the call in tail position. A Lox function is not called from
+        // here but left in the interpreter's tail fields for the caller's
+        // invoke() loop, so tail calls don't grow the Java stack.
+        int executeTail(Environment environment) {
+            Object function = callee.execute(environment);
+            return tailCall(function, evaluateArguments(environment));
+        }
+
+        int tailCall(Object function, List<Object> values) {
+            if (function instanceof LoxFunction) {
+                LoxFunction target = (LoxFunction)function;
+                interpreter.prepareTailCall(target, target.receiver, values, paren);
+                return TAIL_CALL;
+            }
+
+            // Classes and native functions are called the usual way.
+            interpreter.returnValue = call(function, values);
+            return RETURN;
+        }
+
+        List<Object> evaluateArguments(Environment environment) {
+            List<Object> values = new ArrayList<>(arguments.length);
+            for (Expression argument : arguments) {
+                values.add(argument.execute(environment));
+            }
+            return values;
+        }
+
+        Object call(Object function, List<Object> values) {
+            if (!(function instanceof LoxCallable)) {
+                throw new RuntimeError(paren, "Can only call funcitons and classes");
+            }
+
+            interpreter.enterCall(paren);
+            try {
+                return cache.call(interpreter, (LoxCallable)function, values, paren);
+            } finally {
+                interpreter.exitCall();
+            }
+        }
+    }
+
+    // obj.method(...), which hands the receiver straight to the method found
+    // through the Get's cache instead of binding it first.
+    static class Invoke extends Call {
+        Invoke(Token paren, Interpreter interpreter, Get callee, Expression[] arguments) {
+            super(paren, interpreter, callee, arguments);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Get get = (Get)callee;
+            LoxInstance instance = receiver(get, environment);
+            LoxFunction method = get.cache.method(instance, get.name);
+            if (method == null) {
+                // A field, which may still hold something callable.
+                return call(instance.get(get.name), evaluateArguments(environment));
+            }
+
+            List<Object> values = evaluateArguments(environment);
+            interpreter.enterCall(paren);
+            try {
+                return InlineCache.Call.invoke(interpreter, method, instance, values, paren);
+            } finally {
+                interpreter.exitCall();
+            }
+        }
+
+        @Override
+        int executeTail(Environment environment) {
+            Get get = (Get)callee;
+            LoxInstance instance = receiver(get, environment);
+            LoxFunction method = get.cache.method(instance, get.name);
+            if (method == null) {
+                return tailCall(instance.get(get.name), evaluateArguments(environment));
+            }
+
+            interpreter.prepareTailCall(method, instance, evaluateArguments(environment), paren);
+            return TAIL_CALL;
+        }
+
+        private static LoxInstance receiver(Get get, Environment environment) {
+            Object object = get.object.execute(environment);
+            if (object instanceof LoxInstance) return (LoxInstance)object;
+
+            throw new RuntimeError(get.name, "Only instrances have properties.");
+        }
+    }
+
+    static class Get extends Expression {
+        final Token name;
+        final InlineCache.Get cache = new InlineCache.Get();
+        Expression object;
+
+        Get(Token name, Expression object) {
+            this.name = name;
+            this.object = adopt(object, node -> this.object = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = object.execute(environment);
+            if (value instanceof LoxInstance) {
+                return cache.get((LoxInstance)value, name);
+            }
+
+            throw new RuntimeError(name, "Only instrances have properties.");
+        }
+    }
+
+    static class Set extends Expression {
+        final Token name;
+        final InlineCache.Set cache = new InlineCache.Set();
+        Expression object;
+        Expression value;
+
+        Set(Token name, Expression object, Expression value) {
+            this.name = name;
+            this.object = adopt(object, node -> this.object = (Expression)node);
+            this.value = adopt(value, node -> this.value = (Expression)node);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object target = object.execute(environment);
+
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.execute(environment);
+            cache.set((LoxInstance)target, name, result);
+            return result;
+        }
+    }
+
+    static class Super extends Expression {
+        final Token method;
+        final Interpreter.Local superclass;
+        final Interpreter.Local receiver;
+
+        Super(Token method, Interpreter.Local superclass, Interpreter.Local receiver) {
+            this.method = method;
+            this.superclass = superclass;
+            this.receiver = receiver;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            LoxClass superclass = (LoxClass)environment.getAt(this.superclass.depth, this.superclass.slot);
+            LoxInstance object = (LoxInstance)environment.getAt(receiver.depth, receiver.slot);
+
+            LoxFunction function = superclass.findMethod(method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+
+            return function.bind(object);
+        }
+    }
+
+    static class Block extends Statement {
+        Statement[] statements;
+
+        Block(Statement[] statements) {
+            this.statements = adopt(statements);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            return Sequence.run(statements, new Environment(environment));
+        }
+    }
+
+    // A block the Resolver marked reusable, whose frame is kept for the next
+    // block to run once it has finished.
+    static class ReusableBlock extends Statement {
+        final Interpreter interpreter;
+        Statement[] statements;
+
+        ReusableBlock(Interpreter interpreter, Statement[] statements) {
+            this.interpreter = interpreter;
+            this.statements = adopt(statements);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            Environment frame = interpreter.takeFrame(environment);
+            try {
+                return Sequence.run(statements, frame);
+            } finally {
+                interpreter.releaseFrame(frame);
+            }
+        }
+    }
+
+    // A block the Resolver put in the enclosing frame.
+    static class InlineBlock extends Statement {
+        Statement[] statements;
+
+        InlineBlock(Statement[] statements) {
+            this.statements = adopt(statements);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            Environment.avoided++;
+            return Sequence.run(statements, environment);
+        }
+    }
+
+    // Statements run in the enclosing environment, like a function body.
+    static class Sequence extends Statement {
+        Statement[] statements;
+
+        Sequence(Statement[] statements) {
+            this.statements = adopt(statements);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            return run(statements, environment);
+        }
+
+        static int run(Statement[] statements, Environment environment) {
+            for (Statement statement : statements) {
+                int completion = statement.execute(environment);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        }
+    }
+
+    static class ExpressionStatement extends Statement {
+        Expression expression;
+
+        ExpressionStatement(Expression expression) {
+            this.expression = adopt(expression, node -> this.expression = (Expression)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            expression.execute(environment);
+            return NORMAL;
+        }
+    }
+
+    static class Print extends Statement {
+        Expression expression;
+
+        Print(Expression expression) {
+            this.expression = adopt(expression, node -> this.expression = (Expression)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            System.out.println(Interpreter.stringify(expression.execute(environment)));
+            return NORMAL;
+        }
+    }
+
+    static class Var extends Statement {
+        final String name;
+        final int slot;
+        Expression initializer;
+
+        Var(String name, int slot, Expression initializer) {
+            this.name = name;
+            this.slot = slot;
+            this.initializer = adopt(initializer, node -> this.initializer = (Expression)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            Object value = null;
+            if (initializer != null) value = initializer.execute(environment);
+            environment.define(name, slot, value);
+            return NORMAL;
+        }
+    }
+
+    static class If extends Statement {
+        Expression condition;
+        Statement thenBranch;
+        Statement elseBranch;
+
+        If(Expression condition, Statement thenBranch, Statement elseBranch) {
+            this.condition = adopt(condition, node -> this.condition = (Expression)node);
+            this.thenBranch = adopt(thenBranch, node -> this.thenBranch = (Statement)node);
+            this.elseBranch = adopt(elseBranch, node -> this.elseBranch = (Statement)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            if (Interpreter.isTruthy(condition.execute(environment))) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return NORMAL;
+        }
+    }
+
+    static class While extends Statement {
+        Expression condition;
+        Statement body;
+
+        While(Expression condition, Statement body) {
+            this.condition = adopt(condition, node -> this.condition = (Expression)node);
+            this.body = adopt(body, node -> this.body = (Statement)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            while (Interpreter.isTruthy(condition.execute(environment))) {
+                int completion = body.execute(environment);
+                if (completion == BREAK) break;
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        }
+    }
+
+    static class Break extends Statement {
+        @Override
+        int execute(Environment environment) {
+            return BREAK;
+        }
+    }
+
+    static class Return extends Statement {
+        final NodeInterpreter interpreter;
+        Expression value;
+
+        Return(NodeInterpreter interpreter, Expression value) {
+            this.interpreter = interpreter;
+            this.value = adopt(value, node -> this.value = (Expression)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            interpreter.returnValue = value == null ? null : value.execute(environment);
+            return RETURN;
+        }
+    }
+
+    // A return of a call's result, which the Resolver marked a tail call.
+    static class TailReturn extends Statement {
+        Call call;
+
+        TailReturn(Call call) {
+            this.call = adopt(call, node -> this.call = (Call)node);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            return call.executeTail(environment);
+        }
+    }
+
+    static class Function extends Statement {
+        final Stmt.Function declaration;
+        final NodeInterpreter interpreter;
+        // Where the declaration defines the function, unused for methods.
+        final int slot;
+        final Interpreter.Local[] captures;
+        Statement body;
+
+        Function(Stmt.Function declaration, NodeInterpreter interpreter, int slot,
+                Interpreter.Local[] captures, Statement body) {
+            this.declaration = declaration;
+            this.interpreter = interpreter;
+            this.slot = slot;
+            this.captures = captures;
+            this.body = adopt(body, node -> this.body = (Statement)node);
+        }
+
+        NodeFunction create(Environment environment, boolean isInitializer) {
+            return new NodeFunction(declaration, environment.capture(captures), isInitializer,
+                    null, this);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            environment.define(declaration.name.lexeme, slot, declaration.selfCaptured,
+                    create(environment, false));
+            return NORMAL;
+        }
+    }
+
+    static class Class extends Statement {
+        final Token name;
+        Expression superclass;
+        final Token superclassName;
+        final int slot;
+        final boolean captured;
+        Function[] methods;
+
+        Class(Token name, int slot, boolean captured, Expression superclass, Token superclassName,
+                Function[] methods) {
+            this.name = name;
+            this.slot = slot;
+            this.captured = captured;
+            this.superclass = adopt(superclass, node -> this.superclass = (Expression)node);
+            this.superclassName = superclassName;
+            this.methods = adopt(methods);
+        }
+
+        @Override
+        int execute(Environment environment) {
+            Object parent = null;
+            if (superclass != null) {
+                parent = superclass.execute(environment);
+                if (!(parent instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+            }
+
+            Environment scope = environment;
+            if (superclass != null) {
+                scope = new Environment(environment);
+                scope.define("super", parent);
+            }
+
+            Map<String, LoxFunction> functions = new HashMap<>();
+            for (Function method : methods) {
+                String methodName = method.declaration.name.lexeme;
+                functions.put(methodName, method.create(scope, methodName.equals("init")));
+            }
+
+            environment.define(name.lexeme, slot, captured,
+                    new LoxClass(name.lexeme, (LoxClass)parent, functions));
+            return NORMAL;
+        }
+    }
+}
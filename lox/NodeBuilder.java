@@ -0,0 +1,184 @@
+package craftinginterpreter.lox;
+
+import java.util.List;
+
+// Turns resolved statements into the executable nodes of NodeInterpreter.
+class NodeBuilder implements Expr.Visitor<Node.Expression>, Stmt.Visitor<Node.Statement> {
+    private final NodeInterpreter interpreter;
+
+    NodeBuilder(NodeInterpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Node.Statement build(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Node.Expression build(Expr expr) {
+        if (expr == null) return null;
+        return expr.accept(this);
+    }
+
+    private Node.Statement[] build(List<Stmt> statements) {
+        Node.Statement[] nodes = new Node.Statement[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = build(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private Node.Function function(Stmt.Function stmt) {
+        return new Node.Function(stmt, interpreter, stmt.slot,
+                stmt.captures, new Node.Sequence(build(stmt.body)));
+    }
+
+    @Override
+    public Node.Statement visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.inline) return new Node.InlineBlock(build(stmt.statements));
+        if (stmt.reusable) return new Node.ReusableBlock(interpreter, build(stmt.statements));
+        return new Node.Block(build(stmt.statements));
+    }
+
+    @Override
+    public Node.Statement visitClassStmt(Stmt.Class stmt) {
+        Node.Function[] methods = new Node.Function[stmt.methods.size()];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = function(stmt.methods.get(i));
+        }
+
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+        return new Node.Class(stmt.name, stmt.slot, stmt.selfCaptured, build(stmt.superclass),
+                superclassName, methods);
+    }
+
+    @Override
+    public Node.Statement visitExpressionStmt(Stmt.Expression stmt) {
+        return new Node.ExpressionStatement(build(stmt.expression));
+    }
+
+    @Override
+    public Node.Statement visitFunctionStmt(Stmt.Function stmt) {
+        return function(stmt);
+    }
+
+    @Override
+    public Node.Statement visitIfStmt(Stmt.If stmt) {
+        Node.Statement elseBranch = stmt.elsebranch == null ? null : build(stmt.elsebranch);
+        return new Node.If(build(stmt.condition), build(stmt.thenBranch), elseBranch);
+    }
+
+    @Override
+    public Node.Statement visitPrintStmt(Stmt.Print stmt) {
+        return new Node.Print(build(stmt.expression));
+    }
+
+    @Override
+    public Node.Statement visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) return new Node.TailReturn((Node.Call)build(stmt.value));
+        return new Node.Return(interpreter, build(stmt.value));
+    }
+
+    @Override
+    public Node.Statement visitBreakStmt(Stmt.Break stmt) {
+        return new Node.Break();
+    }
+
+    @Override
+    public Node.Statement visitWhileStmt(Stmt.While stmt) {
+        return new Node.While(build(stmt.condition), build(stmt.body));
+    }
+
+    @Override
+    public Node.Statement visitVarStmt(Stmt.Var stmt) {
+        return new Node.Var(stmt.name.lexeme, stmt.slot, build(stmt.initializer));
+    }
+
+    @Override
+    public Node.Expression visitAssignExpr(Expr.Assign expr) {
+        Interpreter.Local local = expr.local;
+        if (local != null) {
+            return new Node.LocalWrite(local.depth, local.slot, build(expr.value));
+        }
+        return new Node.GlobalWrite(expr.name, expr.global, build(expr.value));
+    }
+
+    @Override
+    public Node.Expression visitBinaryExpr(Expr.Binary expr) {
+        Node.Expression left = build(expr.left);
+        Node.Expression right = build(expr.right);
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                // Nothing to specialize on.
+                return new Node.GenericBinary(expr.operator, left, right);
+            default:
+                return new Node.UninitializedBinary(expr.operator, left, right);
+        }
+    }
+
+    @Override
+    public Node.Expression visitCallExpr(Expr.Call expr) {
+        Node.Expression[] arguments = new Node.Expression[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Node.Get callee = new Node.Get(get.name, build(get.object));
+            return new Node.Invoke(expr.paren, interpreter, callee, arguments);
+        }
+        return new Node.Call(expr.paren, interpreter, build(expr.callee), arguments);
+    }
+
+    @Override
+    public Node.Expression visitGetExpr(Expr.Get expr) {
+        return new Node.Get(expr.name, build(expr.object));
+    }
+
+    @Override
+    public Node.Expression visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public Node.Expression visitLiteralExpr(Expr.Literal expr) {
+        return new Node.Literal(expr.value);
+    }
+
+    @Override
+    public Node.Expression visitLogicalExpr(Expr.Logical expr) {
+        return new Node.Logical(expr.operator.type == TokenType.OR,
+                build(expr.left), build(expr.right));
+    }
+
+    @Override
+    public Node.Expression visitSetExpr(Expr.Set expr) {
+        return new Node.Set(expr.name, build(expr.object), build(expr.value));
+    }
+
+    @Override
+    public Node.Expression visitSuperExpr(Expr.Super expr) {
+        return new Node.Super(expr.method, expr.local, expr.receiver);
+    }
+
+    @Override
+    public Node.Expression visitThisExpr(Expr.This expr) {
+        return variable(expr.local, null, expr.keyword);
+    }
+
+    @Override
+    public Node.Expression visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) return new Node.Not(build(expr.right));
+        return new Node.UninitializedNegate(expr.operator, build(expr.right));
+    }
+
+    @Override
+    public Node.Expression visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.local, expr.global, expr.name);
+    }
+
+    private Node.Expression variable(Interpreter.Local local, Global global, Token name) {
+        if (local != null) return new Node.LocalRead(local.depth, local.slot);
+        return new Node.GlobalRead(name, global);
+    }
+}
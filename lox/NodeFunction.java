@@ -0,0 +1,34 @@
+package craftinginterpreter.lox;
+
+import java.util.List;
+
+// A function whose body runs as a specializing node tree. Every closure of
+// the same declaration shares the tree, and with it the type feedback.
+class NodeFunction extends LoxFunction {
+    private final Node.Function node;
+
+    NodeFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer,
+            LoxInstance receiver, Node.Function node) {
+        super(declaration, upvalues, isInitializer, receiver);
+        this.node = node;
+    }
+
+    @Override
+    LoxFunction bind(LoxInstance instance) {
+        return new NodeFunction(declaration, upvalues, isInitializer, instance, node);
+    }
+
+    @Override
+    Object run(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        Environment environment = new Environment(upvalues);
+        if (receiver != null) environment.define("this", receiver);
+        for (Object argument : arguments) {
+            environment.define(null, argument);
+        }
+
+        int completion = node.body.execute(environment);
+        if (completion == Node.TAIL_CALL) return TAIL_CALL;
+        if (completion == Node.RETURN) return node.interpreter.takeReturnValue();
+        return null;
+    }
+}
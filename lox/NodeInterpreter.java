@@ -0,0 +1,20 @@
+package craftinginterpreter.lox;
+
+import java.util.List;
+
+// Runs programs on self-specializing node trees instead of walking the
+// Expr/Stmt tree. The Resolver resolves into it exactly as it does for the
+// tree-walker, and it shares globals, classes and instances with it.
+class NodeInterpreter extends Interpreter {
+    @Override
+    void interpret(List<Stmt> statements) {
+        NodeBuilder builder = new NodeBuilder(this);
+        try {
+            for (Stmt statement : statements) {
+                new Node.Root(builder.build(statement)).execute(globals);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+}
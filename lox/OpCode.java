@@ -0,0 +1,54 @@
+package craftinginterpreter.lox;
+
+// Instruction set of the bytecode VM. Operands follow the opcode as
+// separate ints in the chunk's code array.
+final class OpCode {
+    private OpCode() {}
+
+    static final int CONSTANT      = 0;  // const index
+    static final int NIL           = 1;
+    static final int TRUE          = 2;
+    static final int FALSE         = 3;
+    static final int POP           = 4;
+    static final int GET_LOCAL     = 5;  // slot
+    static final int SET_LOCAL     = 6;  // slot
+    static final int GET_GLOBAL    = 7;  // name index
+    static final int DEFINE_GLOBAL = 8;  // name index
+    static final int SET_GLOBAL    = 9;  // name index
+    static final int GET_UPVALUE   = 10; // upvalue index
+    static final int SET_UPVALUE   = 11; // upvalue index
+    static final int GET_PROPERTY  = 12; // name index
+    static final int SET_PROPERTY  = 13; // name index
+    static final int GET_SUPER     = 14; // name index
+    static final int EQUAL         = 15;
+    static final int NOT_EQUAL     = 16;
+    static final int GREATER       = 17;
+    static final int GREATER_EQUAL = 18;
+    static final int LESS          = 19;
+    static final int LESS_EQUAL    = 20;
+    static final int ADD           = 21;
+    static final int SUBTRACT      = 22;
+    static final int MULTIPLY      = 23;
+    static final int DIVIDE        = 24;
+    static final int NOT           = 25;
+    static final int NEGATE        = 26;
+    static final int PRINT         = 27;
+    static final int JUMP          = 28; // offset
+    static final int JUMP_IF_FALSE = 29; // offset
+    static final int LOOP          = 30; // offset
+    static final int CALL          = 31; // arg count
+    static final int INVOKE        = 32; // name index, arg count
+    static final int SUPER_INVOKE  = 33; // name index, arg count
+    static final int CLOSURE       = 34; // function index, (isLocal, index) per upvalue
+    static final int CLOSE_UPVALUE = 35;
+    static final int RETURN        = 36;
+    static final int CLASS         = 37; // name index
+    static final int INHERIT       = 38;
+    static final int METHOD        = 39; // name index
+    static final int NUMBER_CONSTANT = 40; // const index, read unboxed
+    // Calls in tail position, always followed by a RETURN. A closure reuses
+    // the frame of the function returning, and never gets to the RETURN.
+    static final int TAIL_CALL     = 41; // arg count
+    static final int TAIL_INVOKE   = 42; // name index, arg count
+    static final int TAIL_SUPER_INVOKE = 43; // name index, arg count
+}
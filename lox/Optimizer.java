@@ -0,0 +1,349 @@
+package craftinginterpreter.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Simplifies resolved statements before they run: operators on literals
+// are folded, branches on a literal condition are pruned and statements
+// that can never run after a return or break are dropped.
+//
+// Nothing that could fail at runtime is folded (1 / 0, -"a", ...), so
+// errors are still raised when and where they would have been. Nodes the
+// Resolver recorded something for are either kept as they are or, when
+// rebuilt, have the resolution moved over to the new node.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt stmt = optimize(statement);
+            if (stmt == null) continue;
+
+            optimized.add(stmt);
+            // The rest of the list can't be reached.
+            if (completesAbruptly(stmt)) break;
+        }
+        return optimized;
+    }
+
+    // Null if the statement does nothing.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Where a single statement is needed, one that does nothing.
+    private Stmt orEmpty(Stmt stmt) {
+        if (stmt != null) return stmt;
+
+        Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+        empty.inline = true;
+        return empty;
+    }
+
+    // Whether control never reaches the statement after this one.
+    private static boolean completesAbruptly(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break) return true;
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+            return !statements.isEmpty() && completesAbruptly(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return ifStmt.elsebranch != null && completesAbruptly(ifStmt.thenBranch)
+                && completesAbruptly(ifStmt.elsebranch);
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal)expr).value;
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> optimized = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs) optimized.add(optimize(expr));
+        return optimized;
+    }
+
+    private static boolean same(List<?> a, List<?> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (same(statements, stmt.statements)) return stmt;
+
+        Stmt.Block optimized = new Stmt.Block(statements);
+        optimized.inline = stmt.inline;
+        optimized.reusable = stmt.reusable;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.add((Stmt.Function)optimize(method));
+        }
+        if (same(methods, stmt.methods)) return stmt;
+        Stmt.Class optimized = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        optimized.slot = stmt.slot;
+        optimized.selfCaptured = stmt.selfCaptured;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        // A literal on its own has no effect.
+        if (isLiteral(expression)) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if (same(body, stmt.body)) return stmt;
+
+        Stmt.Function optimized = new Stmt.Function(stmt.name, stmt.params, body);
+        optimized.slot = stmt.slot;
+        optimized.selfCaptured = stmt.selfCaptured;
+        optimized.captures = stmt.captures;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition)) {
+            if (Interpreter.isTruthy(value(condition))) return optimize(stmt.thenBranch);
+            return stmt.elsebranch == null ? null : optimize(stmt.elsebranch);
+        }
+
+        Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+        Stmt elseBranch = stmt.elsebranch == null ? null : optimize(stmt.elsebranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elsebranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        Stmt.Return optimized = new Stmt.Return(stmt.keyword, value);
+        optimized.tailCall = stmt.tailCall;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition) && !Interpreter.isTruthy(value(condition))) return null;
+
+        Stmt body = orEmpty(optimize(stmt.body));
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var optimized = new Stmt.Var(stmt.name, initializer);
+        optimized.slot = stmt.slot;
+        return optimized;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign optimized = new Expr.Assign(expr.name, value);
+        optimized.local = expr.local;
+        optimized.global = expr.global;
+        return optimized;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        // Down a chain like a + b + c + ... by a loop rather than a call per
+        // operator, then back up it folding as far as the literals go.
+        List<Expr.Binary> chain = new ArrayList<>();
+        Expr left = expr;
+        while (left instanceof Expr.Binary || left instanceof Expr.Grouping) {
+            if (left instanceof Expr.Grouping) {
+                left = ((Expr.Grouping)left).expression;
+            } else {
+                chain.add((Expr.Binary)left);
+                left = ((Expr.Binary)left).left;
+            }
+        }
+
+        left = optimize(left);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Expr.Binary binary = chain.get(i);
+            left = binary(binary, left, optimize(binary.right));
+        }
+        return left;
+    }
+
+    private Expr binary(Expr.Binary expr, Expr left, Expr right) {
+        if (isLiteral(left) && isLiteral(right)) {
+            Expr folded = fold(expr.operator, value(left), value(right));
+            if (folded != null) return folded;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // The literal the operator gives for the operands, or null if it would
+    // fail at runtime.
+    private static Expr fold(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL: return new Expr.Literal(!Interpreter.isEqual(left, right));
+            case EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(left, right));
+            case PLUS:
+                if (left instanceof String && right instanceof String)
+                    return new Expr.Literal((String)left + (String)right);
+                if (left instanceof String && right instanceof Double)
+                    return new Expr.Literal((String)left + Interpreter.stringify(right));
+                if (left instanceof Double && right instanceof String)
+                    return new Expr.Literal(Interpreter.stringify(left) + (String)right);
+                break;
+        }
+
+        if (!(left instanceof Double && right instanceof Double)) return null;
+        double a = (double)left;
+        double b = (double)right;
+        switch (operator.type) {
+            case GREATER: return new Expr.Literal(a > b);
+            case GREATER_EQUAL: return new Expr.Literal(a >= b);
+            case LESS: return new Expr.Literal(a < b);
+            case LESS_EQUAL: return new Expr.Literal(a <= b);
+            case MINUS: return new Expr.Literal(a - b);
+            case PLUS: return new Expr.Literal(a + b);
+            case STAR: return new Expr.Literal(a * b);
+            case SLASH:
+                if (b == 0) return null;
+                return new Expr.Literal(a / b);
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && same(arguments, expr.arguments)) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Grouping only matters to the parser.
+        Expr inner = expr.expression;
+        while (inner instanceof Expr.Grouping) inner = ((Expr.Grouping)inner).expression;
+        return optimize(inner);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (isLiteral(left)) {
+            boolean truthy = Interpreter.isTruthy(value(left));
+            boolean isOr = expr.operator.type == TokenType.OR;
+            return truthy == isOr ? left : right;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (isLiteral(right)) {
+            Object value = value(right);
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) return new Expr.Literal(-(double)value);
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
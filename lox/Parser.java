@@ -9,11 +9,11 @@ import static craftinginterpreter.lox.TokenType.*;
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // Only the token being looked at and the one before it are kept.
+    private final TokenCursor tokens;
     List<Stmt> statements = new ArrayList<>();
     
-    Parser(List<Token> tokens) {
+    Parser(TokenCursor tokens) {
         this.tokens = tokens;
     }
 
@@ -49,7 +49,8 @@ class Parser {
     }
 
     private Stmt.Class classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expected class name.");
+        consume(IDENTIFIER, "Expected class name.");
+        Token name = previous();
 
         Expr.Variable superclass = null;
         if (match(LESS)) {
@@ -73,8 +74,8 @@ class Parser {
         // Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
         // Challenge from Functions
         Token name = new Token(FUN, "fun", null, 0);
-        if (check(IDENTIFIER))
-            name = advance();
+        if (match(IDENTIFIER))
+            name = previous();
 
         consume(LEFT_PAREN, "Expected '(' after function name.");
         List<Token> parameters = new ArrayList<>();
@@ -83,7 +84,8 @@ class Parser {
             if (parameters.size() >= 255) {
                 error(peek(), "Can't have more than 255 parameters.");
             }
-            parameters.add(consume(IDENTIFIER, "Expected parameter name."));
+                consume(IDENTIFIER, "Expected parameter name.");
+                parameters.add(previous());
             } while(match(COMMA));
         }
 
@@ -96,7 +98,8 @@ class Parser {
     }
     
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expected variable name.");
+        consume(IDENTIFIER, "Expected variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -205,258 +208,325 @@ class Parser {
         return new Stmt.Expression(expr);
     }
     
-    private Expr expression() {
-        return assignment();
+    // How tightly each infix operator binds to its left operand, lowest
+    // first. The right operand of an operator is parsed at the next level
+    // up, except for assignment, which is right-associative.
+    private enum Precedence {
+        NONE,
+        ASSIGNMENT, // =
+        OR,         // or
+        AND,        // and
+        EQUALITY,   // == !=
+        COMPARISON, // < > <= >=
+        TERM,       // + -
+        FACTOR,     // * /
+        UNARY,      // ! -
+        CALL,       // . ()
+        PRIMARY
+    }
+
+    private static final Precedence[] PRECEDENCES = Precedence.values();
+
+    // The precedence of each token type as an infix operator, by ordinal.
+    private static final Precedence[] infix = new Precedence[TokenType.values().length];
+    static {
+        Arrays.fill(infix, Precedence.NONE);
+        infix[EQUAL.ordinal()] = Precedence.ASSIGNMENT;
+        infix[OR.ordinal()] = Precedence.OR;
+        infix[AND.ordinal()] = Precedence.AND;
+        infix[BANG_EQUAL.ordinal()] = Precedence.EQUALITY;
+        infix[EQUAL_EQUAL.ordinal()] = Precedence.EQUALITY;
+        infix[GREATER.ordinal()] = Precedence.COMPARISON;
+        infix[GREATER_EQUAL.ordinal()] = Precedence.COMPARISON;
+        infix[LESS.ordinal()] = Precedence.COMPARISON;
+        infix[LESS_EQUAL.ordinal()] = Precedence.COMPARISON;
+        infix[MINUS.ordinal()] = Precedence.TERM;
+        infix[PLUS.ordinal()] = Precedence.TERM;
+        infix[STAR.ordinal()] = Precedence.FACTOR;
+        infix[SLASH.ordinal()] = Precedence.FACTOR;
+        infix[LEFT_PAREN.ordinal()] = Precedence.CALL;
+        infix[DOT.ordinal()] = Precedence.CALL;
     }
-    
-    private Expr assignment() {
-        Expr expr = or();
 
-        if (match(EQUAL)) {
-            Token equal = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name =  ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get)expr;
-                return new Expr.Set(get.object, get.name, value);
+    private Expr expression() {
+        return parse(Precedence.ASSIGNMENT);
+    }
+
+    // What an operand parse() is working on is for, once it is complete.
+    private enum Pending {
+        RESULT,   // what parse() returns
+        UNARY,    // the operand of a prefix ! or -
+        GROUPING, // the inside of parentheses
+        OPERAND,  // the right operand of an infix operator
+        ARGUMENT  // an argument of a call
+    }
+
+    // An operand parse() is in the middle of: what a recursive parser would
+    // keep in the locals of one of its calls. parse() keeps them on an
+    // explicit stack, so deeply nested expressions need heap rather than
+    // Java stack. Levels are reused from one expression to the next.
+    private static final class Level {
+        Precedence precedence;
+        // Operators at this precedence or above are left to the caller.
+        Precedence ceiling;
+        Expr expr;
+        Pending pending;
+        // The operator the operand is for.
+        Token token;
+        // The arguments of the call so far.
+        List<Expr> arguments;
+
+        void operand(Expr operand) {
+            expr = operand;
+            ceiling = Precedence.PRIMARY;
+            // A prefix operator's operand has taken every call or property
+            // after it already. Challenge from (Functions) to implement
+            // lambdas: no calls or properties on one.
+            if (operand instanceof Expr.Unary || (operand instanceof Expr.Variable
+                    && ((Expr.Variable)operand).name.type == FUN)) {
+                ceiling = Precedence.CALL;
             }
-
-            error(equal, "Invalid assignment target.");
         }
-        
-        return expr;
     }
-    
-    private Expr or() {
-        Expr expr = and();
 
-        if (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            return new Expr.Logical(expr, operator, right);
-        }
+    private Level[] levels = new Level[16];
+    private int depth = 0;
 
-        return expr;
-    }
+    private Level push(Precedence precedence, Pending pending, Token token) {
+        if (depth == levels.length) levels = Arrays.copyOf(levels, depth * 2);
+        if (levels[depth] == null) levels[depth] = new Level();
 
-    private Expr and() {
-        Expr expr = equality(); // change it equality to reduce the stress:)!.
-
-        if (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            return new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
+        Level level = levels[depth++];
+        level.precedence = precedence;
+        level.ceiling = Precedence.PRIMARY;
+        level.expr = null;
+        level.pending = pending;
+        level.token = token;
+        level.arguments = null;
+        return level;
     }
-    
-    // Below method is challenge 1 implemetation of (Parsing Representation).
-    private Expr comma() {
-        Expr expr = ternary();
-
-        while(match(COMMA)) {
-            Token token = previous();
-            Expr right = ternary();
-            expr = new Expr.Binary(expr, token, right);
-        }
 
-        return expr;
+    // Drops the top level and returns the one under it.
+    private Level pop() {
+        Level level = levels[--depth];
+        level.expr = null;
+        level.token = null;
+        level.arguments = null;
+        return depth == 0 ? null : levels[depth - 1];
     }
 
-    // Below method is challenge 2 implementation of (Parsing Representaion)
-    private Expr ternary() {
-        Expr expr = equality();
-
-        if (!match(QUESTION)) return expr;
-        Expr left = ternary();
-        advance();
-        Expr right = equality();
-        expr = new Expr.Conditional(expr, left, right);
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    // Parses an expression made of operators that bind at least as tightly
+    // as the precedence given. Each operand takes a level on the explicit
+    // stack rather than a call, however many levels of precedence lie
+    // between it and the operator.
+    private Expr parse(Precedence precedence) {
+        int base = depth;
+        Level level = push(precedence, Pending.RESULT, null);
+        try {
+            operands:
+            while (true) {
+                // Prefix operators and parentheses each open a level for
+                // what follows them.
+                boolean primaryOnly = false;
+                Expr operand = null;
+                while (operand == null) {
+                    TokenType type = tokens.type();
+                    if (!primaryOnly && (type == BANG || type == MINUS)) {
+                        advance();
+                        level = push(Precedence.UNARY, Pending.UNARY, previous());
+                    } else if (type == LEFT_PAREN) {
+                        advance();
+                        level = push(Precedence.ASSIGNMENT, Pending.GROUPING, null);
+                        primaryOnly = false;
+                    } else if (type == PLUS || type == STAR || type == SLASH) {
+                        // Challenge 3 of (Parsing Expressions).
+                        advance();
+                        System.err.println(previous().lexeme + 
+                                " Binary operation at the start of expression.");
+                        primaryOnly = true;
+                    } else {
+                        operand = primary();
+                    }
+                }
+                level.operand(operand);
+
+                while (true) {
+                    TokenType type = tokens.type();
+                    Precedence operator = infix[type.ordinal()];
+                    if (operator.compareTo(level.precedence) >= 0
+                            && operator.compareTo(level.ceiling) < 0) {
+                        advance();
+                        if (type == DOT) {
+                            consume(IDENTIFIER, "Expected property name afer '.'");
+                            Token name = previous();
+                            level.expr = new Expr.Get(level.expr, name);
+                            continue;
+                        }
+                        if (type == LEFT_PAREN) {
+                            if (match(RIGHT_PAREN)) {
+                                level.expr = new Expr.Call(level.expr, previous(), new ArrayList<>());
+                                continue;
+                            }
+                            level = push(Precedence.ASSIGNMENT, Pending.ARGUMENT, null);
+                            level.arguments = new ArrayList<>();
+                            continue operands;
+                        }
+
+                        // Assignment, or and and don't chain: a second one at
+                        // the same level is left for the caller, which then
+                        // fails on it.
+                        if (type == EQUAL || type == OR || type == AND) level.ceiling = operator;
+                        Precedence right = type == EQUAL ? Precedence.ASSIGNMENT : next(operator);
+                        level = push(right, Pending.OPERAND, previous());
+                        continue operands;
+                    }
+
+                    // Nothing more binds here: the level is complete.
+                    Expr expr = level.expr;
+                    Pending pending = level.pending;
+                    Token token = level.token;
+                    List<Expr> arguments = level.arguments;
+                    level = pop();
+                    switch (pending) {
+                        case RESULT:
+                            return expr;
+                        case UNARY:
+                            level.operand(new Expr.Unary(token, expr));
+                            break;
+                        case GROUPING:
+                            consume(RIGHT_PAREN, "Expect ')' after expression.");
+                            level.operand(new Expr.Grouping(expr));
+                            break;
+                        case OPERAND:
+                            level.expr = infix(level.expr, token, expr);
+                            break;
+                        case ARGUMENT:
+                            arguments.add(expr);
+                            if (match(COMMA)) {
+                                if (arguments.size() >= 255) {
+                                    error(peek(), "Can't have more than 255 arguments.");
+                                }
+                                level = push(Precedence.ASSIGNMENT, Pending.ARGUMENT, null);
+                                level.arguments = arguments;
+                                continue operands;
+                            }
+                            consume(RIGHT_PAREN, "Expected ')' after argument list.");
+                            level.expr = new Expr.Call(level.expr, previous(), arguments);
+                            break;
+                    }
+                }
+            }
+        } finally {
+            // A parse error unwinds through here too.
+            while (depth > base) pop();
         }
-
-        return expr;
     }
 
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr infix(Expr left, Token operator, Expr right) {
+        switch (operator.type) {
+            case EQUAL:
+                return assignment(left, operator, right);
+            case OR:
+            case AND:
+                return new Expr.Logical(left, operator, right);
+            default:
+                return new Expr.Binary(left, operator, right);
         }
-
-        return expr;
     }
 
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+    private static Precedence next(Precedence precedence) {
+        return PRECEDENCES[precedence.ordinal() + 1];
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-
-        while (match(STAR, SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr assignment(Expr expr, Token equal, Expr value) {
+        if (expr instanceof Expr.Variable) {
+            Token name =  ((Expr.Variable)expr).name;
+            return new Expr.Assign(name, value);
+        } else if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            return new Expr.Set(get.object, get.name, value);
         }
 
+        error(equal, "Invalid assignment target.");
         return expr;
     }
     
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-
-        return call();
-    }
-
-    private Expr call() {
-        Expr expr = primary();
+    // Parentheses never get here: parse() opens a level for them.
+    private Expr primary() {
+        switch (tokens.type()) {
+            case FALSE: advance(); return new Expr.Literal(false);
+            case TRUE: advance(); return new Expr.Literal(true);
+            case NIL: advance(); return new Expr.Literal(null);
 
-        // Challenge from (Functions) to implement lambdas
-        if (expr instanceof Expr.Variable) {
-            if (((Expr.Variable)expr).name.type == FUN) {
+            case FUN: {
+                // Challenge from (Functions)
+                advance();
+                Token keyword = previous();
                 statements.add(function("function"));
-                return expr;
+                return new Expr.Variable(keyword);
             }
-        }
-        
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER, "Expected property name afer '.'");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
-        }
 
-        return expr;
-    }
-
-    private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-        // Challenge from (Functions)
-        if (match(FUN)) return new Expr.Variable(previous());
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expected '.' after superkeyword.");
-            Token method = consume(IDENTIFIER, "Expected superclass method name.");
-            return new Expr.Super(keyword, method);
-        }
+            case NUMBER:
+            case STRING:
+                advance();
+                return new Expr.Literal(previous().literal);
 
-        if (match(THIS)) return new Expr.This(previous());
+            case SUPER: {
+                advance();
+                Token keyword = previous();
+                consume(DOT, "Expected '.' after superkeyword.");
+                consume(IDENTIFIER, "Expected superclass method name.");
+                Token method = previous();
+                return new Expr.Super(keyword, method);
+            }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-        
-        // Challenge 3 of (Parsing Expressions).
-        if (match(PLUS, STAR, SLASH)) {
-            System.err.println(previous().lexeme + 
-                    " Binary operation at the start of expression.");
-            return primary();
-        }
+            case THIS:
+                advance();
+                return new Expr.This(previous());
 
-        if (match(IDENTIFIER)) {
-            return new Expr.Variable(previous());
+            case IDENTIFIER:
+                advance();
+                return new Expr.Variable(previous());
         }
 
         throw error(peek(), "Except expression");
     }
     
-    private Expr finishCall(Expr callee) {
-        List<Expr> arguments = new ArrayList<>();
-
-        if (!check(RIGHT_PAREN)) {
-            do {
-                if (arguments.size() >= 255) {
-                    error(peek(), "Can't have more than 255 arguments.");
-                }
-                arguments.add(expression());
-            } while (match(COMMA));
-        }
-
-        Token paren = consume(RIGHT_PAREN, "Expected ')' after argument list.");
-
-        return new Expr.Call(callee, paren, arguments);
-    }
-
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
-        }
-
-        return false;
+    private boolean match(TokenType type) {
+        if (!check(type)) return false;
+        advance();
+        return true;
     }
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type() == type;
     }
 
-     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    // Get the token it consumed from previous(), if it is needed.
+     private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    private void advance() {
+        tokens.advance();
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.current();
     }
 
     private Token previous() {
-        return tokens.get(current-1);
+        return tokens.previous();
     }
     
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type() == EOF;
     }
 
     private ParseError error(Token token, String message) {
@@ -470,7 +540,7 @@ class Parser {
         while (!isAtEnd()) {
             if (previous().type == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type()) {
                 case CLASS:
                 case FOR:
                 case IF:
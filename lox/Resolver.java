@@ -1,9 +1,10 @@
 package craftinginterpreter.lox;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 import java.util.TreeSet;
 import java.sql.Array;
 import java.util.ArrayList;
@@ -11,17 +12,79 @@ import java.util.Collections;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Deque<Map<String, Variable>> scopes = new ArrayDeque<>();
+    // The frame each scope keeps its locals in, null for a top-level scope
+    // that declares nothing. ArrayDeque doesn't take nulls, so a list.
+    private final List<Frame> frames = new ArrayList<>();
+    // The innermost local of each name in scope, so a name is found without
+    // searching the scopes.
+    private final Map<String, Variable> declarations = new HashMap<>();
+    // Whether each block declares a function or class somewhere inside.
+    private final Map<Stmt.Block, Boolean> capturing = new HashMap<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private Closure currentClosure = null;
     private ClassType currentClass = ClassType.NONE;
     private BlockType currentBlock = BlockType.NONE;
-    // Challenge 3 from (Resolving and Binding).
-    private final ArrayList<ArrayList<String>> usedVariables = new ArrayList<>();
 
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
     }
 
+    // A local declared in some scope, numbered in declaration order so the
+    // Interpreter can keep the frame's values in an array.
+    private static class Variable {
+        final int frame;
+        final int slot;
+        // Index in scopes of the scope that declares it.
+        final int scope;
+        // The local of the same name it hides, if any.
+        final Variable shadowed;
+        boolean defined = false;
+        // Challenge 3 from (Resolving and Binding).
+        boolean used = false;
+        // Whether a closure reaches it through an upvalue.
+        boolean captured = false;
+
+        Variable(int frame, int slot, int scope, Variable shadowed) {
+            this.frame = frame;
+            this.slot = slot;
+            this.scope = scope;
+            this.shadowed = shadowed;
+        }
+    }
+
+    // An Environment the Interpreter creates at runtime. Functions and
+    // classes get one, but a block only does when it has to: one that
+    // declares nothing, or that no closure can capture, keeps its locals
+    // in the enclosing frame after the ones already there.
+    private static class Frame {
+        final int depth;
+        int size = 0;
+
+        Frame(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    // A function being resolved and the locals of enclosing functions it
+    // uses. A closure of it copies their upvalues when it is created, so it
+    // doesn't keep the frames they live in reachable.
+    private static class Closure {
+        final Closure enclosing;
+        // Index in scopes of the function's own scope.
+        final int scope;
+        // Depth of the frame the function is declared in.
+        final int frame;
+        final Map<Variable, Integer> upvalues = new HashMap<>();
+        final List<Interpreter.Local> captures = new ArrayList<>();
+
+        Closure(Closure enclosing, int scope, int frame) {
+            this.enclosing = enclosing;
+            this.scope = scope;
+            this.frame = frame;
+        }
+    }
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -43,10 +106,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        Frame enclosing = frame();
+        boolean captured = declaresFunction(stmt);
+        // Globals are kept by name, so top-level blocks need their own frame.
+        boolean ownFrame = declares(stmt.statements) && (enclosing == null || captured);
+
+        if (ownFrame) {
+            beginScope();
+        } else {
+            beginScope(enclosing);
+        }
         resolve(stmt.statements);
         unusedVariable();
         endScope();
+
+        if (!ownFrame) {
+            stmt.inline = true;
+        } else if (!captured) {
+            stmt.reusable = true;
+        }
         return null;
     }
 
@@ -55,7 +133,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
@@ -66,13 +144,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
             beginScope();
-            scopes.peek().put("super", true);
+            declare("super");
         }
 
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType type = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -81,8 +156,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, type);
         }
 
-        endScope();
         if (stmt.superclass != null) endScope();
+        stmt.selfCaptured = isCaptured(stmt.name);
 
         currentClass = enclosingClass;
         return null;
@@ -96,10 +171,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
+        stmt.selfCaptured = isCaptured(stmt.name);
         return null;
     }
 
@@ -130,6 +206,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
         resolve(stmt.value);
+
+        // Returning a call's result is a tail call, except from an
+        // initializer, which always returns "this".
+        if (stmt.value instanceof Expr.Call && currentFunction != FunctionType.INITIALIZER) {
+            stmt.tailCall = true;
+        }
         return null;
     }
 
@@ -152,7 +234,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -162,25 +244,41 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        if (!scopes.isEmpty() && scopes.peek().containsKey(expr.name.lexeme) &&
+                !scopes.peek().get(expr.name.lexeme).defined) {
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        expr.local = lookUp(expr.name.lexeme);
+        if (expr.local == null) expr.global = interpreter.globals.global(expr.name.lexeme);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.local = lookUp(expr.name.lexeme);
+        if (expr.local == null) expr.global = interpreter.globals.global(expr.name.lexeme);
         return null;
     }
 
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+        // Down a chain like a + b + c + ... by a loop rather than a call per
+        // operator, then the right operands in the order they come.
+        List<Expr.Binary> chain = new ArrayList<>();
+        Expr left = expr;
+        while (left instanceof Expr.Binary || left instanceof Expr.Grouping) {
+            if (left instanceof Expr.Grouping) {
+                left = ((Expr.Grouping)left).expression;
+            } else {
+                chain.add((Expr.Binary)left);
+                left = ((Expr.Binary)left).left;
+            }
+        }
+
+        resolve(left);
+        for (int i = chain.size() - 1; i >= 0; i--) resolve(chain.get(i).right);
         return null;
     }
 
@@ -203,7 +301,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
-        resolve(expr.expression);
+        Expr inner = expr.expression;
+        while (inner instanceof Expr.Grouping) inner = ((Expr.Grouping)inner).expression;
+        resolve(inner);
         return null;
     }
 
@@ -233,7 +333,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         } else if (currentClass != ClassType.SUBCLASS) {
             Lox.error(expr.keyword, "Can't use 'super' in a class with no super class.");
         }
-        resolveLocal(expr, expr.keyword);
+        // The method is found on "super", then bound to "this".
+        expr.local = lookUp(expr.keyword.lexeme);
+        expr.receiver = lookUp("this");
         return null;
     }
 
@@ -244,7 +346,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'this' outside of class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        expr.local = lookUp(expr.keyword.lexeme);
         return null;
     }
 
@@ -255,14 +357,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    @Override
-    public Void visitConditionalExpr(Expr.Conditional expr) {
-        resolve(expr.base);
-        resolve(expr.right);
-        resolve(expr.left);
-        return null;
-    }
-
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -272,8 +366,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        // A break can't leave the function for a loop around its declaration.
+        BlockType enclosingBlock = currentBlock;
+        currentBlock = BlockType.NONE;
+        Frame frame = frame();
+        currentClosure = new Closure(currentClosure, scopes.size(), frame == null ? -1 : frame.depth);
 
         beginScope();
+        // A method gets "this" in the first slot of its own frame.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            declare("this");
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
@@ -282,7 +385,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(function.body);
         unusedVariable();
         endScope();
+        function.captures = currentClosure.captures.toArray(new Interpreter.Local[0]);
+        currentClosure = currentClosure.enclosing;
         currentFunction = enclosingFunction;
+        currentBlock = enclosingBlock;
     }
 
     private void resolve(Stmt stmt) {
@@ -293,44 +399,157 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
+    // The frame of the innermost scope, or null.
+    private Frame frame() {
+        return frames.isEmpty() ? null : frames.get(frames.size() - 1);
+    }
+
+    // A scope with a frame of its own.
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
-        usedVariables.add(new ArrayList<>());
+        Frame enclosing = frame();
+        beginScope(new Frame(enclosing == null ? 0 : enclosing.depth + 1));
+    }
+
+    private void beginScope(Frame frame) {
+        scopes.push(new HashMap<String, Variable>());
+        frames.add(frame);
     }
 
     private void endScope() {
-        scopes.pop();
-        usedVariables.remove(usedVariables.size()-1);
+        int scope = scopes.size() - 1;
+        for (String name : scopes.pop().keySet()) {
+            Variable variable = declarations.get(name);
+            while (variable != null && variable.scope == scope) variable = variable.shadowed;
+            if (variable == null) {
+                declarations.remove(name);
+            } else {
+                declarations.put(name, variable);
+            }
+        }
+        frames.remove(frames.size() - 1);
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    // Whether any of the statements declares a local in their scope.
+    private static boolean declares(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+                    || statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a function or class is declared anywhere in the block, which
+    // could capture its frame. Worked out once per block, as nested blocks
+    // ask again about what their enclosing block already looked through.
+    private boolean declaresFunction(Stmt.Block block) {
+        Boolean declares = capturing.get(block);
+        if (declares == null) {
+            declares = false;
+            for (Stmt statement : block.statements) {
+                if (declaresFunction(statement)) {
+                    declares = true;
+                    break;
+                }
+            }
+            capturing.put(block, declares);
+        }
+        return declares;
+    }
+
+    private boolean declaresFunction(Stmt statement) {
+        if (statement instanceof Stmt.Function || statement instanceof Stmt.Class) return true;
+        if (statement instanceof Stmt.Block) {
+            return declaresFunction((Stmt.Block)statement);
+        }
+        if (statement instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)statement;
+            return declaresFunction(ifStmt.thenBranch)
+                || (ifStmt.elsebranch != null && declaresFunction(ifStmt.elsebranch));
+        }
+        if (statement instanceof Stmt.While) {
+            return declaresFunction(((Stmt.While)statement).body);
+        }
+        return false;
+    }
+
+    // Returns the slot of the new local, or -1 for a global.
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
         if (scopes.peek().containsKey(name.lexeme)) {
             Lox.error(name, "Already a variable exists with this name in this scope.");
         }
 
-        scopes.peek().put(name.lexeme, false);
+        return add(name.lexeme).slot;
+    }
+
+    // Declares and defines one of the implicit "this" and "super" locals.
+    private void declare(String name) {
+        add(name).defined = true;
+    }
+
+    // A new local in the innermost scope, in the next slot of its frame.
+    private Variable add(String name) {
+        Frame frame = frame();
+        Variable variable = new Variable(frame.depth, frame.size++, scopes.size() - 1,
+                declarations.get(name));
+        Variable replaced = scopes.peek().put(name, variable);
+        // Uses are counted by name in a scope, so a redeclaration keeps
+        // those of the local it replaces.
+        if (replaced != null) variable.used = replaced.used;
+        declarations.put(name, variable);
+        return variable;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size()-1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                int distance = scopes.size()-1-i;
-                interpreter.resolve(expr, distance);
-                usedVariables.get(usedVariables.size() - 1 - distance).add(name.lexeme);
-                return;
-            }
+    // Where the current function finds a local, or null if it is a global.
+    private Interpreter.Local lookUp(String name) {
+        Variable variable = declarations.get(name);
+        if (variable == null) return null;
+
+        variable.used = true;
+        if (currentClosure == null || variable.scope >= currentClosure.scope) {
+            return new Interpreter.Local(frame().depth - variable.frame, variable.slot);
+        }
+        return new Interpreter.Local(-1, upvalue(currentClosure, variable, variable.scope));
+    }
+
+    // Index of the upvalue for a local of an enclosing function, adding it
+    // to every function in between that doesn't have it yet.
+    private int upvalue(Closure closure, Variable variable, int scope) {
+        Integer index = closure.upvalues.get(variable);
+        if (index != null) return index;
+
+        Interpreter.Local capture;
+        if (closure.enclosing == null || scope >= closure.enclosing.scope) {
+            variable.captured = true;
+            capture = new Interpreter.Local(closure.frame - variable.frame, variable.slot);
+        } else {
+            capture = new Interpreter.Local(-1, upvalue(closure.enclosing, variable, scope));
         }
+
+        closure.upvalues.put(variable, closure.captures.size());
+        closure.captures.add(capture);
+        return closure.captures.size() - 1;
+    }
+
+    // Whether the local just declared for a function or class was captured
+    // by a closure made along with it, as by a function that calls itself.
+    // Its slot then holds an Upvalue by the time it is defined.
+    private boolean isCaptured(Token name) {
+        return !scopes.isEmpty() && scopes.peek().get(name.lexeme).captured;
     }
 
     private void unusedVariable() {
-        for (String s : scopes.peek().keySet()) {
-            if (!usedVariables.get(usedVariables.size()-1).contains(s)) {
+        for (Map.Entry<String, Variable> entry : scopes.peek().entrySet()) {
+            String s = entry.getKey();
+            if (s.equals("this")) continue;
+            if (!entry.getValue().used) {
                 Lox.error(new Token(TokenType.STRING, s, s, 0),
                         "Variable " + s + " is declared but not used.");
                 return;
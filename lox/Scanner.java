@@ -1,19 +1,36 @@
 package craftinginterpreter.lox;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Collections;
 import java.util.Map;
 
 import static craftinginterpreter.lox.TokenType.*;
 
+// Scans UTF-8 bytes, typically a file mapped straight into memory, rather
+// than a decoded String. Everything outside string literals and comments
+// is ASCII, so a byte is a character there; only the lexemes of
+// strings and numbers are ever decoded. Identifiers are interned from the
+// bytes as symbols, and the rest use a shared constant.
 class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final ByteBuffer source;
+    private final int length;
+    // The token scanToken() found, if any.
+    private Token scanned = null;
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // Tokens and errors go here instead when the scanner runs on its own
+    // thread.
+    TokenBuffer buffer = null;
+
+    // What the ternary checks need to know about the tokens so far.
+    private int count = 0;
+    private int questions = 0;
+    private int colons = 0;
+    private TokenType lastType = null;
+    private TokenType previousType = null;
 
     private static final Map<String, TokenType> keywords = new HashMap<>();
     static {
@@ -36,19 +53,120 @@ class Scanner {
         keywords.put("break", BREAK);
     }
 
-    Scanner(String source) {
+    // Keyword types by symbol ID, null for the symbols that aren't keywords.
+    private static final TokenType[] keywordTypes;
+    static {
+        int[] ids = new int[keywords.size()];
+        int i = 0;
+        int size = 0;
+        for (String keyword : keywords.keySet()) {
+            ids[i] = Symbols.intern(keyword);
+            size = Math.max(size, ids[i++] + 1);
+        }
+        keywordTypes = new TokenType[size];
+        i = 0;
+        for (TokenType type : keywords.values()) keywordTypes[ids[i++]] = type;
+    }
+
+    // Powers of ten that are exact as doubles.
+    private static final double[] powersOfTen = new double[23];
+    static {
+        powersOfTen[0] = 1;
+        for (int i = 1; i < powersOfTen.length; i++) powersOfTen[i] = powersOfTen[i-1] * 10;
+    }
+
+    private static final Map<TokenType, String> lexemes = new EnumMap<>(TokenType.class);
+    static {
+        String[] punctuation = {"(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*",
+            "!", "!=", "=", "==", ">", ">=", "<", "<="};
+        TokenType[] types = {LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA, DOT,
+            MINUS, PLUS, SEMICOLON, SLASH, STAR, BANG, BANG_EQUAL, EQUAL, EQUAL_EQUAL,
+            GREATER, GREATER_EQUAL, LESS, LESS_EQUAL};
+        for (int i = 0; i < types.length; i++) lexemes.put(types[i], punctuation[i]);
+        lexemes.put(QUESTION, "?");
+        lexemes.put(COLON, ":");
+        for (Map.Entry<String, TokenType> keyword : keywords.entrySet()) {
+            lexemes.put(keyword.getValue(), keyword.getKey());
+        }
+    }
+
+    Scanner(ByteBuffer source) {
         this.source = source;
+        this.length = source.limit();
+    }
+
+    Scanner(String source) {
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Size of the source in bytes.
+    int length() {
+        return length;
+    }
+
+    // A cursor for the parser to read straight from the scanner, which
+    // scans each token as the cursor reaches it.
+    TokenCursor cursor() {
+        return new TokenCursor() {
+            private Token current = null;
+            private Token previous = null;
+
+            @Override
+            public TokenType type() {
+                return current().type;
+            }
+
+            @Override
+            public Token current() {
+                if (current == null) current = next();
+                return current;
+            }
+
+            @Override
+            public Token previous() {
+                return previous;
+            }
+
+            @Override
+            public void advance() {
+                if (current().type == EOF) return;
+                previous = current;
+                current = next();
+            }
+        };
+    }
+
+    // Scans the rest of the source into the buffer.
+    void scanAll() {
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        buffer.put(EOF, current, 0, line, -1, null);
     }
 
-    List<Token> scanTokens() {
+    // Scans just far enough for the next token.
+    private Token next() {
         while (!isAtEnd()) {
             // We are at the begining of the next lexeme
             start = current;
             scanToken();
+            if (scanned != null) {
+                Token token = scanned;
+                scanned = null;
+                return token;
+            }
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        return new Token(EOF, "", null, line);
+    }
+
+    private void error(int line, String message) {
+        if (buffer != null) {
+            buffer.error(line, message);
+        } else {
+            Lox.error(line, message);
+        }
     }
 
     private void scanToken() {
@@ -85,7 +203,7 @@ class Scanner {
                     // challenge 4 of scanner module
                     while ((peek() != '*' || peekNext() != '/') && !isAtEnd()) advance();
                     if (isAtEnd()) {
-                        Lox.error(line, "Incomplete comment.");
+                        error(line, "Incomplete comment.");
                     } else {
                         current += 2;
                     }
@@ -98,12 +216,12 @@ class Scanner {
             case '?':
                 addToken(QUESTION);
                 if (!verify())
-                    Lox.error(line, "Improper use of ternary operator");
+                    error(line, "Improper use of ternary operator");
                 break;
             case ':':
                 addToken(COLON);
                 if (!verify())
-                    Lox.error(line, "Improper use of ternary operator");
+                    error(line, "Improper use of ternary operator");
                 break;
 
             case ' ':
@@ -123,7 +241,9 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character");
+                    // Skip the rest of a multi-byte character.
+                    while ((peek() & 0xc0) == 0x80) advance();
+                    error(line, "Unexpected character");
                 }
 
                 break;
@@ -137,7 +257,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unexpected string.");
+            error(line, "Unexpected string.");
             return;
         }
 
@@ -145,8 +265,7 @@ class Scanner {
         advance();
 
         // Trim the surrounding quotes
-        String text = source.substring(start+1, current-1);
-        addToken(STRING, text);
+        addToken(STRING, new String(bytes(start+1, current-1), StandardCharsets.UTF_8), -1);
     }
 
     private void number() {
@@ -159,34 +278,86 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, numberValue(), -1);
+    }
+
+    // The value of the number just scanned, read from the bytes. Up to 15
+    // digits fit a double exactly and so do the powers of ten up to 1e22,
+    // so one division is correctly rounded; anything longer goes through
+    // Double.parseDouble.
+    private double numberValue() {
+        long digits = 0;
+        int count = 0;
+        int scale = -1;
+        for (int i = start; i < current; i++) {
+            byte c = source.get(i);
+            if (c == '.') {
+                scale = 0;
+                continue;
+            }
+            digits = digits * 10 + (c - '0');
+            count++;
+            if (scale >= 0) scale++;
+        }
+
+        if (count > 15) {
+            return Double.parseDouble(new String(bytes(start, current), StandardCharsets.ISO_8859_1));
+        }
+        if (scale <= 0) return digits;
+        return digits / powersOfTen[scale];
     }
     
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
         
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        int symbol = Symbols.intern(source, start, current - start);
+        TokenType type = symbol < keywordTypes.length ? keywordTypes[symbol] : null;
+        addToken(type == null ? IDENTIFIER : type, null, symbol);
+    }
+
+    // The lexeme of a token, only made when a Token needs it.
+    String lexeme(TokenType type, int start, int length, int symbol) {
+        switch (type) {
+            case IDENTIFIER: return Symbols.name(symbol);
+            case NUMBER: return new String(bytes(start, start + length), StandardCharsets.ISO_8859_1);
+            case STRING: return new String(bytes(start, start + length), StandardCharsets.UTF_8);
+            case EOF: return "";
+            default: return lexemes.get(type);
+        }
+    }
+
+    private byte[] bytes(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return bytes;
     }
 
     private char advance() {
-        return source.charAt(current++);
+        return (char)(source.get(current++) & 0xff);
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        addToken(type, null, -1);
     }
 
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private void addToken(TokenType type, Object literal, int symbol) {
+        int length = current - start;
+        if (buffer != null) {
+            buffer.put(type, start, length, line, symbol, literal);
+        } else {
+            scanned = new Token(type, lexeme(type, start, length, symbol), literal, line);
+        }
+
+        count++;
+        if (type == QUESTION) questions++;
+        if (type == COLON) colons++;
+        previousType = lastType;
+        lastType = type;
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source.get(current) != expected) return false;
         
         current++;
         return true;
@@ -194,16 +365,16 @@ class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return (char)(source.get(current) & 0xff);
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current+1);
+        if (current + 1 >= length) return '\0';
+        return (char)(source.get(current+1) & 0xff);
     }
    
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= length;
     }
     
     private boolean isDigit(char c) {
@@ -220,18 +391,13 @@ class Scanner {
 
     // Implementing ternary
     private boolean verify() {
-        int size = tokens.size()-1;
-        if (size == 0 || source.length() < 4) return false;
-        if (tokens.get(size-1).type == QUESTION ||
-                tokens.get(size-1).type == COLON) return false;
-
-        List<TokenType> types = new ArrayList<>();
-        for (Token token : tokens)
-            types.add(token.type);
+        int size = count-1;
+        if (size == 0 || length < 4) return false;
+        if (previousType == QUESTION || previousType == COLON) return false;
 
-        if (tokens.get(size).type == COLON) {
+        if (lastType == COLON) {
             if (size < 2) return false;
-            if (Collections.frequency(types, QUESTION) < Collections.frequency(types, COLON)) 
+            if (questions < colons) 
                 return false;
         } 
 
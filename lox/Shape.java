@@ -0,0 +1,41 @@
+package craftinginterpreter.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which name lives at which index of
+// its values array. Instances that get the same fields in the same order
+// end up with the same shape, so the name-to-index map is kept once per
+// layout instead of once per instance.
+final class Shape {
+    static final Shape EMPTY = new Shape(new HashMap<>());
+
+    private final Map<String, Integer> offsets;
+    // Shapes reached from this one by adding a field, built on demand.
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    private Shape(Map<String, Integer> offsets) {
+        this.offsets = offsets;
+    }
+
+    // Index of the field in an instance of this shape, or -1.
+    int offset(String name) {
+        Integer offset = offsets.get(name);
+        return offset == null ? -1 : offset;
+    }
+
+    int size() {
+        return offsets.size();
+    }
+
+    Shape with(String name) {
+        Shape shape = transitions.get(name);
+        if (shape == null) {
+            Map<String, Integer> added = new HashMap<>(offsets);
+            added.put(name, offsets.size());
+            shape = new Shape(added);
+            transitions.put(name, shape);
+        }
+        return shape;
+    }
+}
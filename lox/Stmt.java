@@ -17,6 +17,8 @@ abstract class Stmt {
     }
     static class Block extends Stmt {
         final List<Stmt> statements;
+        boolean inline = false;
+        boolean reusable = false;
 
         Block(List<Stmt> statements) {
             this.statements = statements;
@@ -31,6 +33,8 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
+        boolean selfCaptured = false;
 
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
             this.name = name;
@@ -59,6 +63,11 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        boolean selfCaptured = false;
+        Interpreter.Local[] captures = null;
+        int calls = 0;
+        JvmCompiler.Code compiled = null;
 
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
@@ -114,6 +123,7 @@ abstract class Stmt {
     static class Return extends Stmt {
         final Token keyword;
         final Expr value;
+        boolean tailCall = false;
 
         Return(Token keyword, Expr value) {
             this.keyword = keyword;
@@ -142,6 +152,7 @@ abstract class Stmt {
     static class Var extends Stmt {
         final Token name;
         final Expr initializer;
+        int slot = -1;
 
         Var(Token name, Expr initializer) {
             this.name = name;
@@ -0,0 +1,89 @@
+package craftinginterpreter.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Interned names. Each distinct name gets a small integer ID the first time
+// it is seen, and every token for it shares the one String, so later stages
+// can compare names by ID (or by reference) instead of by content.
+//
+// The scanner looks names up straight from the source bytes and only
+// builds a String the first time a name appears. Only the thread scanning
+// adds symbols.
+final class Symbols {
+    private Symbols() {}
+
+    // Open addressing on the hash of the bytes; slots hold ID + 1, 0 is empty.
+    private static int[] table = new int[1024];
+    // Volatile so that the parser's thread can read names as they are added.
+    private static volatile String[] names = new String[256];
+    private static byte[][] bytes = new byte[256][];
+    private static int[] hashes = new int[256];
+    private static int count = 0;
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    static int intern(String name) {
+        byte[] text = name.getBytes(StandardCharsets.UTF_8);
+        return intern(ByteBuffer.wrap(text), 0, text.length);
+    }
+
+    // The ID of the name in source[start, start + length).
+    static int intern(ByteBuffer source, int start, int length) {
+        int hash = hash(source, start, length);
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int entry = table[i] - 1;
+            if (entry < 0) return add(source, start, length, hash, i);
+            if (hashes[entry] == hash && equals(bytes[entry], source, start, length)) return entry;
+        }
+    }
+
+    private static int add(ByteBuffer source, int start, int length, int hash, int index) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            bytes = Arrays.copyOf(bytes, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+
+        byte[] text = new byte[length];
+        source.get(start, text);
+        names[count] = new String(text, StandardCharsets.UTF_8);
+        bytes[count] = text;
+        hashes[count] = hash;
+        table[index] = count + 1;
+
+        // Keep the table at most half full.
+        if (++count * 2 > table.length) rehash();
+        return count - 1;
+    }
+
+    private static void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int i = hashes[id] & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = id + 1;
+        }
+    }
+
+    private static int hash(ByteBuffer source, int start, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < start + length; i++) {
+            hash = (hash ^ source.get(i)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte[] text, ByteBuffer source, int start, int length) {
+        if (text.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (text[i] != source.get(start + i)) return false;
+        }
+        return true;
+    }
+}
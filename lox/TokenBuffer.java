@@ -0,0 +1,173 @@
+package craftinginterpreter.lox;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs a Scanner on a thread of its own and hands its tokens to the Parser
+// through a ring buffer, so lexing and parsing overlap. The ring is
+// bounded: the scanner waits when the parser falls behind, so only SIZE
+// tokens are ever held however big the source is.
+//
+// Tokens are kept as parallel arrays of their fields rather than as Token
+// objects, and a Token is only made when the parser asks for one to put in
+// the tree. Punctuation and most keywords never become objects at all.
+//
+// There is one writer and one reader. Each owns its own counter and only
+// reads the other's, and a side that has to wait parks until the other
+// has moved half the ring on, rather than being woken for every token.
+final class TokenBuffer implements TokenCursor {
+    private static final int SIZE = 1 << 12;
+    private static final int MASK = SIZE - 1;
+    private static final int BATCH = SIZE / 2;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // A scan error, reported by the parser's thread just before the token
+    // the scanner was on, as if both ran on the same thread.
+    private static final class ScanError {
+        final long position;
+        final int line;
+        final String message;
+
+        ScanError(long position, int line, String message) {
+            this.position = position;
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    private final Scanner scanner;
+    private final byte[] types = new byte[SIZE];
+    private final int[] starts = new int[SIZE];
+    private final int[] lengths = new int[SIZE];
+    private final int[] lines = new int[SIZE];
+    private final int[] symbols = new int[SIZE];
+    // Literal values; only the entries of NUMBER and STRING tokens are set.
+    private final Object[] literals = new Object[SIZE];
+
+    private volatile long written = 0;
+    // The position of the token the cursor is on. The one before it stays
+    // in the ring too, for previous().
+    private volatile long read = 0;
+    private volatile Thread waitingWriter = null;
+    private volatile Thread waitingReader = null;
+    private final ConcurrentLinkedQueue<ScanError> errors = new ConcurrentLinkedQueue<>();
+    // What the scanner's thread died of, if it did, for the parser's thread
+    // to rethrow once it runs out of tokens instead of waiting forever.
+    private volatile Throwable failure = null;
+
+    // The reader's own copy of read, and the type of the token there once
+    // it has been scanned and the errors before it reported.
+    private long position = 0;
+    private TokenType type = null;
+    // The Tokens made for the cursor's position and the one before it.
+    private Token current = null;
+    private Token previous = null;
+
+    private TokenBuffer(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    static TokenBuffer start(Scanner scanner) {
+        TokenBuffer buffer = new TokenBuffer(scanner);
+        scanner.buffer = buffer;
+        Thread thread = new Thread(() -> {
+            try {
+                scanner.scanAll();
+            } catch (Throwable error) {
+                buffer.fail(error);
+            }
+        }, "lox-scanner");
+        thread.setDaemon(true);
+        thread.start();
+        return buffer;
+    }
+
+    // Called on the scanner's thread.
+    void put(TokenType type, int start, int length, int line, int symbol, Object literal) {
+        long position = written;
+        while (position - read == SIZE - 1) {
+            waitingWriter = Thread.currentThread();
+            if (position - read == SIZE - 1) LockSupport.park(this);
+            waitingWriter = null;
+        }
+
+        int index = (int)position & MASK;
+        types[index] = (byte)type.ordinal();
+        starts[index] = start;
+        lengths[index] = length;
+        lines[index] = line;
+        symbols[index] = symbol;
+        literals[index] = literal;
+        written = position + 1;
+        Thread reader = waitingReader;
+        if (reader != null && (position + 1 - read >= BATCH || type == TokenType.EOF)) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    // Called on the scanner's thread.
+    void error(int line, String message) {
+        errors.add(new ScanError(written, line, message));
+    }
+
+    // Called on the scanner's thread.
+    private void fail(Throwable error) {
+        failure = error;
+        Thread reader = waitingReader;
+        if (reader != null) LockSupport.unpark(reader);
+    }
+
+    @Override
+    public TokenType type() {
+        if (type == null) arrive();
+        return type;
+    }
+
+    @Override
+    public Token current() {
+        if (current == null) current = token(position);
+        return current;
+    }
+
+    @Override
+    public Token previous() {
+        if (previous == null && position > 0) previous = token(position - 1);
+        return previous;
+    }
+
+    @Override
+    public void advance() {
+        if (type() == TokenType.EOF) return;
+
+        previous = current;
+        current = null;
+        type = null;
+        read = ++position;
+        Thread writer = waitingWriter;
+        if (writer != null && written - position <= BATCH) LockSupport.unpark(writer);
+    }
+
+    // Waits for the token at the cursor and reports the errors before it.
+    private void arrive() {
+        while (position == written) {
+            if (failure != null) throw new IllegalStateException("The scanner failed.", failure);
+            waitingReader = Thread.currentThread();
+            if (position == written && failure == null) LockSupport.park(this);
+            waitingReader = null;
+        }
+
+        while (!errors.isEmpty() && errors.peek().position <= position) {
+            ScanError error = errors.poll();
+            Lox.error(error.line, error.message);
+        }
+        type = TYPES[types[(int)position & MASK]];
+    }
+
+    private Token token(long position) {
+        type();
+        int index = (int)position & MASK;
+        TokenType type = TYPES[types[index]];
+        String lexeme = scanner.lexeme(type, starts[index], lengths[index], symbols[index]);
+        return new Token(type, lexeme, literals[index], lines[index]);
+    }
+}
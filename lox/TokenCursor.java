@@ -0,0 +1,19 @@
+package craftinginterpreter.lox;
+
+// Where the Parser reads its tokens, one at a time, so a source never has
+// to be turned into a list of tokens before it can be parsed. The cursor
+// sits on the token the parser is looking at; a Token object is only made
+// for the ones the parser asks for.
+interface TokenCursor {
+    // The type of the token the cursor is on.
+    TokenType type();
+
+    // The token the cursor is on.
+    Token current();
+
+    // The token before it, or null at the start.
+    Token previous();
+
+    // Moves on to the next token. The cursor stays on EOF once there.
+    void advance();
+}
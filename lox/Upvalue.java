@@ -0,0 +1,13 @@
+package craftinginterpreter.lox;
+
+// A local captured by a closure. Once a closure captures it, the local's
+// slot holds the Upvalue in place of its value, and every closure that
+// captures it shares the same one, so they all see each other's
+// assignments without keeping the local's frame alive.
+final class Upvalue {
+    Object value;
+
+    Upvalue(Object value) {
+        this.value = value;
+    }
+}
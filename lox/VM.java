@@ -0,0 +1,625 @@
+package craftinginterpreter.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static craftinginterpreter.lox.OpCode.*;
+
+// Stack based virtual machine running the bytecode produced by Compiler.
+//
+// Every stack slot is a pair: an Object slot and a double slot. Numbers
+// live unboxed in the double slot and are tagged by NUMBER in the Object
+// slot, so arithmetic, locals, arguments, return values and upvalues never
+// allocate. A Double is only boxed when the value escapes into a map or a
+// LoxCallable, and unboxed again when it comes back.
+class VM {
+    // Tag of a slot whose value is in the numbers array.
+    static final Object NUMBER = new Object() {
+        @Override
+        public String toString() { return "<number>"; }
+    };
+
+    final Map<String, Object> globals = new HashMap<>();
+
+    private Object[] stack = new Object[1024];
+    private double[] numbers = new double[1024];
+    private int sp = 0;
+
+    // Call frames, stored as parallel arrays to avoid an object per call.
+    private VmClosure[] frameClosures = new VmClosure[64];
+    private int[] frameIps = new int[64];
+    private int[] frameBases = new int[64];
+    private int frameCount = 0;
+    // Deepest call nesting allowed, not counting the script's own frame, as
+    // the interpreters count it. Frames live in these arrays, not on the
+    // Java stack, so this is the only limit on recursion.
+    int maxFrames = 1 << 16;
+
+    private VmUpvalue openUpvalues = null;
+
+    VM() {
+        globals.put("clock", new LoxCallable() {
+            @Override
+            public int arity() { return 0; }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (double)System.currentTimeMillis() / 1000.0;
+            }
+
+            @Override
+            public String toString() { return "<native fn>"; }
+        });
+    }
+
+    void interpret(List<Stmt> statements) {
+        VmFunction script = new Compiler().compile(statements);
+        try {
+            VmClosure closure = new VmClosure(script);
+            stack[sp++] = closure;
+            call(closure, 0, 0, false);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            resetStack();
+        }
+    }
+
+    private void run() {
+        int frame = frameCount - 1;
+        VmClosure closure = frameClosures[frame];
+        int[] code = closure.function.chunk.code;
+        Object[] constants = closure.function.chunk.constants;
+        double[] numberConstants = closure.function.chunk.numbers;
+        int base = frameBases[frame];
+        int ip = frameIps[frame];
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int sp = this.sp;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case CONSTANT:
+                    stack[sp++] = constants[code[ip++]];
+                    break;
+                case NUMBER_CONSTANT:
+                    numbers[sp] = numberConstants[code[ip++]];
+                    stack[sp++] = NUMBER;
+                    break;
+                case NIL: stack[sp++] = null; break;
+                case TRUE: stack[sp++] = true; break;
+                case FALSE: stack[sp++] = false; break;
+                case POP: sp--; break;
+
+                case GET_LOCAL: {
+                    int slot = base + code[ip++];
+                    stack[sp] = stack[slot];
+                    numbers[sp++] = numbers[slot];
+                    break;
+                }
+                case SET_LOCAL: {
+                    int slot = base + code[ip++];
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+
+                case GET_GLOBAL: {
+                    String name = (String)constants[code[ip++]];
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        throw error(closure, ip, "Undefined variable '" + name + "'.");
+                    }
+                    sp = push(stack, numbers, sp, value);
+                    break;
+                }
+                case DEFINE_GLOBAL:
+                    sp--;
+                    globals.put((String)constants[code[ip++]], box(stack, numbers, sp));
+                    break;
+                case SET_GLOBAL: {
+                    String name = (String)constants[code[ip++]];
+                    if (!globals.containsKey(name)) {
+                        throw error(closure, ip, "Undefined variable '" + name + "'.");
+                    }
+                    globals.put(name, box(stack, numbers, sp - 1));
+                    break;
+                }
+
+                case GET_UPVALUE: {
+                    VmUpvalue upvalue = closure.upvalues[code[ip++]];
+                    if (upvalue.isOpen()) {
+                        stack[sp] = stack[upvalue.slot];
+                        numbers[sp++] = numbers[upvalue.slot];
+                    } else {
+                        stack[sp] = upvalue.closed;
+                        numbers[sp++] = upvalue.closedNumber;
+                    }
+                    break;
+                }
+                case SET_UPVALUE: {
+                    VmUpvalue upvalue = closure.upvalues[code[ip++]];
+                    if (upvalue.isOpen()) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                        numbers[upvalue.slot] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                        upvalue.closedNumber = numbers[sp - 1];
+                    }
+                    break;
+                }
+
+                case GET_PROPERTY: {
+                    Object object = stack[sp - 1];
+                    String name = (String)constants[code[ip++]];
+                    if (!(object instanceof VmInstance)) {
+                        throw error(closure, ip, "Only instrances have properties.");
+                    }
+                    VmInstance instance = (VmInstance)object;
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        push(stack, numbers, sp - 1, value);
+                        break;
+                    }
+                    stack[sp - 1] = bindMethod(instance.klass, instance, name, closure, ip);
+                    break;
+                }
+                case SET_PROPERTY: {
+                    Object object = stack[sp - 2];
+                    if (!(object instanceof VmInstance)) {
+                        throw error(closure, ip, "Only instances have fields.");
+                    }
+                    sp--;
+                    ((VmInstance)object).fields.put((String)constants[code[ip++]],
+                            box(stack, numbers, sp));
+                    stack[sp - 1] = stack[sp];
+                    numbers[sp - 1] = numbers[sp];
+                    break;
+                }
+                case GET_SUPER: {
+                    String name = (String)constants[code[ip++]];
+                    VmClass superclass = (VmClass)stack[--sp];
+                    stack[sp - 1] = bindMethod(superclass, stack[sp - 1], name, closure, ip);
+                    break;
+                }
+
+                case EQUAL:
+                    sp--;
+                    stack[sp - 1] = valuesEqual(stack, numbers, sp - 1, sp);
+                    break;
+                case NOT_EQUAL:
+                    sp--;
+                    stack[sp - 1] = !valuesEqual(stack, numbers, sp - 1, sp);
+                    break;
+                case GREATER:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+                    break;
+                case GREATER_EQUAL:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+                    break;
+                case LESS:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+                    break;
+                case LESS_EQUAL:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+                    break;
+                case ADD: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    sp--;
+                    if (a == NUMBER && b == NUMBER) {
+                        numbers[sp - 1] += numbers[sp];
+                    } else if (a instanceof String && b instanceof String) {
+                        stack[sp - 1] = (String)a + (String)b;
+                    } else if (a instanceof String && b == NUMBER) {
+                        stack[sp - 1] = (String)a + Interpreter.stringify(numbers[sp]);
+                    } else if (a == NUMBER && b instanceof String) {
+                        stack[sp - 1] = Interpreter.stringify(numbers[sp - 1]) + (String)b;
+                    } else {
+                        throw error(closure, ip, "Operands must be either numbers or strings.");
+                    }
+                    break;
+                }
+                case SUBTRACT:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    numbers[sp - 1] -= numbers[sp];
+                    break;
+                case MULTIPLY:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    numbers[sp - 1] *= numbers[sp];
+                    break;
+                case DIVIDE:
+                    checkNumberOperands(stack, sp, closure, ip);
+                    sp--;
+                    if (numbers[sp] == 0) throw error(closure, ip, "Divide by zero Error.");
+                    numbers[sp - 1] /= numbers[sp];
+                    break;
+                case NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE:
+                    if (stack[sp - 1] != NUMBER) {
+                        throw error(closure, ip, "Operand must be a number.");
+                    }
+                    numbers[sp - 1] = -numbers[sp - 1];
+                    break;
+
+                case PRINT:
+                    sp--;
+                    System.out.println(Interpreter.stringify(box(stack, numbers, sp)));
+                    break;
+
+                case JUMP: {
+                    int offset = code[ip++];
+                    ip += offset;
+                    break;
+                }
+                case JUMP_IF_FALSE: {
+                    // The NUMBER tag is neither nil nor a Boolean, so numbers
+                    // are truthy without unboxing.
+                    int offset = code[ip++];
+                    if (!Interpreter.isTruthy(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case LOOP: {
+                    int offset = code[ip++];
+                    ip -= offset;
+                    break;
+                }
+
+                case CALL: {
+                    int argCount = code[ip++];
+                    frameIps[frame] = ip;
+                    this.sp = sp;
+                    callValue(stack[sp - argCount - 1], argCount, closure, ip, false);
+                    sp = this.sp;
+                    break;
+                }
+                case INVOKE: {
+                    String name = (String)constants[code[ip++]];
+                    int argCount = code[ip++];
+                    frameIps[frame] = ip;
+                    this.sp = sp;
+                    invoke(name, argCount, closure, ip, false);
+                    sp = this.sp;
+                    break;
+                }
+                case SUPER_INVOKE: {
+                    String name = (String)constants[code[ip++]];
+                    int argCount = code[ip++];
+                    frameIps[frame] = ip;
+                    VmClass superclass = (VmClass)stack[--sp];
+                    this.sp = sp;
+                    invokeFromClass(superclass, name, argCount, closure, ip, false);
+                    sp = this.sp;
+                    break;
+                }
+
+                // A tail call may replace the frame without changing the
+                // frame count, so the frame state is always reloaded.
+                case TAIL_CALL: {
+                    int argCount = code[ip++];
+                    frameIps[frame] = ip;
+                    this.sp = sp;
+                    callValue(stack[sp - argCount - 1], argCount, closure, ip, true);
+                    sp = this.sp;
+                    frame = -1;
+                    break;
+                }
+                case TAIL_INVOKE: {
+                    String name = (String)constants[code[ip++]];
+                    int argCount = code[ip++];
+                    frameIps[frame] = ip;
+                    this.sp = sp;
+                    invoke(name, argCount, closure, ip, true);
+                    sp = this.sp;
+                    frame = -1;
+                    break;
+                }
+                case TAIL_SUPER_INVOKE: {
+                    String name = (String)constants[code[ip++]];
+                    int argCount = code[ip++];
+                    frameIps[frame] = ip;
+                    VmClass superclass = (VmClass)stack[--sp];
+                    this.sp = sp;
+                    invokeFromClass(superclass, name, argCount, closure, ip, true);
+                    sp = this.sp;
+                    frame = -1;
+                    break;
+                }
+
+                case CLOSURE: {
+                    VmFunction function = (VmFunction)constants[code[ip++]];
+                    VmClosure created = new VmClosure(function);
+                    for (int i = 0; i < created.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++];
+                        created.upvalues[i] = isLocal
+                                ? captureUpvalue(base + index)
+                                : closure.upvalues[index];
+                    }
+                    stack[sp++] = created;
+                    break;
+                }
+                case CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+
+                case RETURN: {
+                    sp--;
+                    Object result = stack[sp];
+                    double number = numbers[sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    if (frameCount == 0) {
+                        this.sp = sp;
+                        return;
+                    }
+
+                    stack[sp] = result;
+                    numbers[sp++] = number;
+                    break;
+                }
+
+                case CLASS:
+                    stack[sp++] = new VmClass((String)constants[code[ip++]]);
+                    break;
+                case INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof VmClass)) {
+                        throw error(closure, ip, "Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass)stack[--sp];
+                    subclass.methods.putAll(((VmClass)superclass).methods);
+                    subclass.initializer = ((VmClass)superclass).initializer;
+                    break;
+                }
+                case METHOD: {
+                    String name = (String)constants[code[ip++]];
+                    VmClosure method = (VmClosure)stack[--sp];
+                    VmClass klass = (VmClass)stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+            }
+
+            // Calls and returns switch frames, reload the cached frame state.
+            if (frame != frameCount - 1) {
+                frame = frameCount - 1;
+                closure = frameClosures[frame];
+                code = closure.function.chunk.code;
+                constants = closure.function.chunk.constants;
+                numberConstants = closure.function.chunk.numbers;
+                base = frameBases[frame];
+                ip = frameIps[frame];
+                stack = this.stack;
+                numbers = this.numbers;
+            }
+        }
+    }
+
+    // With tail set, a closure or bound method takes over the caller's frame.
+    private void callValue(Object callee, int argCount, VmClosure caller, int ip, boolean tail) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure)callee, argCount, ip, tail);
+            return;
+        }
+
+        if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod)callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, ip, tail);
+            return;
+        }
+
+        if (callee instanceof VmClass) {
+            VmClass klass = (VmClass)callee;
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount, ip, false);
+            } else if (argCount != 0) {
+                throw error(caller, ip, "Expected 0 arguments but got " + argCount);
+            }
+            return;
+        }
+
+        if (callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable)callee;
+            if (argCount != function.arity()) {
+                throw error(caller, ip, "Expected " + function.arity() +
+                        " arguments but got " + argCount);
+            }
+            List<Object> arguments = new ArrayList<>(argCount);
+            for (int i = sp - argCount; i < sp; i++) {
+                arguments.add(box(stack, numbers, i));
+            }
+            Object result = function.call(null, arguments);
+            Arrays.fill(stack, sp - argCount - 1, sp, null);
+            sp -= argCount + 1;
+            sp = push(stack, numbers, sp, result);
+            return;
+        }
+
+        throw error(caller, ip, "Can only call funcitons and classes");
+    }
+
+    private void invoke(String name, int argCount, VmClosure caller, int ip, boolean tail) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof VmInstance)) {
+            throw error(caller, ip, "Only instrances have properties.");
+        }
+
+        VmInstance instance = (VmInstance)receiver;
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            push(stack, numbers, sp - argCount - 1, field);
+            callValue(stack[sp - argCount - 1], argCount, caller, ip, tail);
+            return;
+        }
+
+        invokeFromClass(instance.klass, name, argCount, caller, ip, tail);
+    }
+
+    private void invokeFromClass(VmClass klass, String name, int argCount,
+            VmClosure caller, int ip, boolean tail) {
+        VmClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(caller, ip, "Undefined property '" + name + "'.");
+        }
+        call(method, argCount, ip, tail);
+    }
+
+    private Object bindMethod(VmClass klass, Object receiver, String name,
+            VmClosure caller, int ip) {
+        VmClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(caller, ip, "Undefined property '" + name + "'.");
+        }
+        return new VmBoundMethod(receiver, method);
+    }
+
+    // Pushes a frame whose slot zero is the callee already on the stack.
+    // With tail set, the callee and its arguments are moved down to the
+    // caller's frame instead, which the callee then runs in.
+    private void call(VmClosure closure, int argCount, int ip, boolean tail) {
+        VmFunction function = closure.function;
+        if (argCount != function.arity) {
+            VmClosure caller = frameCount > 0 ? frameClosures[frameCount - 1] : closure;
+            throw error(caller, ip, "Expected " + function.arity +
+                    " arguments but got " + argCount);
+        }
+
+        if (tail) {
+            int frame = frameCount - 1;
+            int base = frameBases[frame];
+            int callee = sp - argCount - 1;
+            closeUpvalues(base);
+            System.arraycopy(stack, callee, stack, base, argCount + 1);
+            System.arraycopy(numbers, callee, numbers, base, argCount + 1);
+            Arrays.fill(stack, base + argCount + 1, sp, null);
+            sp = base + argCount + 1;
+            ensureStack(base + function.maxStack);
+
+            frameClosures[frame] = closure;
+            frameIps[frame] = 0;
+            return;
+        }
+
+        if (frameCount > maxFrames) {
+            throw error(frameClosures[frameCount - 1], ip, "Stack overflow.");
+        }
+        if (frameCount == frameClosures.length) {
+            frameClosures = Arrays.copyOf(frameClosures, frameCount * 2);
+            frameIps = Arrays.copyOf(frameIps, frameCount * 2);
+            frameBases = Arrays.copyOf(frameBases, frameCount * 2);
+        }
+
+        int base = sp - argCount - 1;
+        ensureStack(base + function.maxStack);
+
+        frameClosures[frameCount] = closure;
+        frameIps[frameCount] = 0;
+        frameBases[frameCount] = base;
+        frameCount++;
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            size = Math.max(stack.length * 2, size);
+            stack = Arrays.copyOf(stack, size);
+            numbers = Arrays.copyOf(numbers, size);
+        }
+    }
+
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.closedNumber = numbers[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+            upvalue.next = null;
+        }
+    }
+
+    // Stores a value coming from outside the stack into slot, unboxing it
+    // if it is a number. Returns the slot after it.
+    private static int push(Object[] stack, double[] numbers, int slot, Object value) {
+        if (value instanceof Double) {
+            stack[slot] = NUMBER;
+            numbers[slot] = (double)value;
+        } else {
+            stack[slot] = value;
+        }
+        return slot + 1;
+    }
+
+    // Returns the value in slot as an object that can leave the stack.
+    private static Object box(Object[] stack, double[] numbers, int slot) {
+        if (stack[slot] == NUMBER) return numbers[slot];
+        return stack[slot];
+    }
+
+    // Same as Interpreter.isEqual, which compares numbers with Double.equals.
+    private static boolean valuesEqual(Object[] stack, double[] numbers, int a, int b) {
+        if (stack[a] == NUMBER && stack[b] == NUMBER) {
+            return Double.doubleToLongBits(numbers[a]) == Double.doubleToLongBits(numbers[b]);
+        }
+        return Interpreter.isEqual(stack[a], stack[b]);
+    }
+
+    private void checkNumberOperands(Object[] stack, int sp, VmClosure closure, int ip) {
+        if (stack[sp - 2] == NUMBER && stack[sp - 1] == NUMBER) return;
+        throw error(closure, ip, "Operands must be a number.");
+    }
+
+    // The instruction that failed is the one just before ip.
+    private RuntimeError error(VmClosure closure, int ip, String message) {
+        int line = closure.function.chunk.lines[ip - 1];
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+}
@@ -0,0 +1,21 @@
+package craftinginterpreter.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+    // Inherited methods are copied down when the class is created, so a
+    // lookup never has to walk the superclass chain.
+    final Map<String, VmClosure> methods = new HashMap<>();
+    VmClosure initializer;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,23 @@
+package craftinginterpreter.lox;
+
+// Compiled form of a function body. Closures created from it at runtime
+// share the chunk and only differ in their captured upvalues.
+class VmFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    // Highest stack depth the body can reach, including its locals.
+    int maxStack = 0;
+
+    VmFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,20 @@
+package craftinginterpreter.lox;
+
+// A variable captured by a closure. While the variable's frame is live the
+// upvalue points at its stack slot, once the frame returns the value is
+// moved into the upvalue itself.
+class VmUpvalue {
+    int slot;
+    Object closed;
+    double closedNumber;
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+
+    boolean isOpen() {
+        return slot >= 0;
+    }
+}
@@ -2,6 +2,7 @@ package craftinginterpreter.tool;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -13,34 +14,31 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                    "Assign     : Token name, Expr value",
+                    "Assign     : Token name, Expr value, Interpreter.Local local = null, Global global = null",
                     "Binary     : Expr left, Token operator, Expr right",
-                    "Call       : Expr callee, Token paren, List<Expr> arguments",
-                    "Get        : Expr object, Token name",
+                    "Call       : Expr callee, Token paren, List<Expr> arguments, InlineCache.Call cache = new InlineCache.Call()",
+                    "Get        : Expr object, Token name, InlineCache.Get cache = new InlineCache.Get()",
                     "Grouping   : Expr expression",
                     "Literal    : Object value",
                     "Logical    : Expr left, Token operator, Expr right",
-                    "Set        : Expr object, Token name, Expr value",
-                    "Super      : Token keyword, Token method",
-                    "This       : Token keyword",
+                    "Set        : Expr object, Token name, Expr value, InlineCache.Set cache = new InlineCache.Set()",
+                    "Super      : Token keyword, Token method, Interpreter.Local local = null, Interpreter.Local receiver = null",
+                    "This       : Token keyword, Interpreter.Local local = null",
                     "Unary      : Token operator, Expr right",
-                    "Variable   : Token name",
-
-                    // implementing ternary
-                    "Conditional: Expr base, Expr left, Expr right"
+                    "Variable   : Token name, Interpreter.Local local = null, Global global = null"
                     ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                    "Block      : List<Stmt> statements",
-                    "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                    "Block      : List<Stmt> statements, boolean inline = false, boolean reusable = false",
+                    "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, int slot = -1, boolean selfCaptured = false",
                     "Expression : Expr expression",
-                    "Function   : Token name, List<Token> params, List<Stmt> body",
+                    "Function   : Token name, List<Token> params, List<Stmt> body, int slot = -1, boolean selfCaptured = false, Interpreter.Local[] captures = null, int calls = 0, JvmCompiler.Code compiled = null",
                     "If         : Expr condition, Stmt thenBranch, Stmt elsebranch",
                     "Break      : Token keyword",
                     "Print      : Expr expression",
-                    "Return     : Token keyword, Expr value",
+                    "Return     : Token keyword, Expr value, boolean tailCall = false",
                     "While      : Expr condition, Stmt body",
-                    "Var        : Token name, Expr initializer"
+                    "Var        : Token name, Expr initializer, int slot = -1"
                     ));
     }
 
@@ -76,19 +74,27 @@ public class GenerateAst {
         (PrintWriter writer, String baseName, String className, String fieldList) {
         writer.println("    static class " + className + " extends " + baseName + " {");
         
-        // Store parameter in the fields.
+        // Store parameter in the fields. A field with an initializer is
+        // state the interpreter keeps on the node, not a parameter, and is
+        // left writable for the pass that works it out.
         String[] fields = fieldList.split(", ");
+        List<String> parameters = new ArrayList<>();
 
         // Fields.
         for (String field : fields) {
-            writer.println("        final " + field + ";");
+            if (field.contains(" = ")) {
+                writer.println("        " + field + ";");
+            } else {
+                writer.println("        final " + field + ";");
+                parameters.add(field);
+            }
         }
         writer.println();
 
         // Constructor.
-        writer.println("        " + className + "(" + fieldList + ") {");
+        writer.println("        " + className + "(" + String.join(", ", parameters) + ") {");
 
-        for (String field : fields) {
+        for (String field : parameters) {
             String name = field.split(" ")[1];
             writer.println("            this." + name + " = " + name + ";");
         }
@@ -0,0 +1,49 @@
+package craftinginterpreter.tool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+// Writes a Lox script for timing the Resolver on a big input:
+//
+//     java craftinginterpreter.tool.GenerateResolverBenchmark 500000 big.lox
+//     java craftinginterpreter.lox.Lox --times big.lox
+//
+// Half of it is one function with a local per line, each used by the next,
+// which is the worst case for per-scope bookkeeping. The rest is many small
+// functions with nested blocks and closures, the common case.
+public class GenerateResolverBenchmark {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !args[0].matches("[1-9][0-9]*")) {
+            System.err.println("Usage: generate_resolver_benchmark <lines> <output file>");
+            System.exit(64);
+        }
+        int lines = Integer.parseInt(args[0]);
+
+        try (PrintWriter writer = new PrintWriter(args[1], "UTF-8")) {
+            int locals = lines / 2;
+            writer.println("fun wide() {");
+            writer.println("    var v0 = 0;");
+            for (int i = 1; i < locals; i++) {
+                writer.println("    var v" + i + " = v" + (i - 1) + " + 1;");
+            }
+            writer.println("    print v" + (locals - 1) + ";");
+            writer.println("}");
+            writer.println("wide();");
+
+            // Each function is 10 lines.
+            int functions = (lines - locals) / 10;
+            for (int i = 0; i < functions; i++) {
+                writer.println("fun f" + i + "(a) {");
+                writer.println("    var b = a + 1;");
+                writer.println("    {");
+                writer.println("        var c = b * 2;");
+                writer.println("        fun g() { return c + a; }");
+                writer.println("        b = g();");
+                writer.println("    }");
+                writer.println("    return b;");
+                writer.println("}");
+                writer.println("f" + i + "(" + i + ");");
+            }
+        }
+    }
+}
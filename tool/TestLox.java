@@ -0,0 +1,84 @@
+package craftinginterpreter.tool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs every Lox script under a directory on each engine and checks what it
+// prints against the "// expect: " comments in the script, in order:
+//
+//     java -cp <classes> craftinginterpreter.tool.TestLox test
+//
+// Errors are printed like any other output, so they are expected the same
+// way. A "// args: " comment gives options to run the script with. Each
+// script runs in a JVM of its own, started with the classpath this one was.
+public class TestLox {
+    private static final String[] ENGINES = {"", "--vm", "--nodes", "--closures", "--jvm"};
+    private static final String EXPECT = "// expect: ";
+    private static final String ARGS = "// args: ";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 1) {
+            System.err.println("Usage: test_lox <test directory>");
+            System.exit(64);
+        }
+
+        List<Path> scripts;
+        try (Stream<Path> paths = Files.walk(Paths.get(args[0]))) {
+            scripts = paths.filter(path -> path.toString().endsWith(".lox"))
+                .sorted().collect(Collectors.toList());
+        }
+
+        int failures = 0;
+        for (Path script : scripts) {
+            List<String> expected = comments(script, EXPECT);
+            List<String> options = new ArrayList<>();
+            for (String line : comments(script, ARGS)) options.addAll(List.of(line.split(" ")));
+            for (String engine : ENGINES) {
+                List<String> actual = run(engine, options, script);
+                if (actual.equals(expected)) continue;
+
+                failures++;
+                System.out.println("FAIL " + script + (engine.isEmpty() ? "" : " " + engine));
+                System.out.println("  expected: " + expected);
+                System.out.println("  actual:   " + actual);
+            }
+        }
+
+        System.out.println(scripts.size() + " scripts, " + failures + " failures.");
+        if (failures > 0) System.exit(1);
+    }
+
+    // What follows the marker on each line of the script that has it.
+    private static List<String> comments(Path script, String marker) throws IOException {
+        List<String> comments = new ArrayList<>();
+        for (String line : Files.readAllLines(script, StandardCharsets.UTF_8)) {
+            int index = line.indexOf(marker);
+            if (index >= 0) comments.add(line.substring(index + marker.length()));
+        }
+        return comments;
+    }
+
+    private static List<String> run(String engine, List<String> options, Path script)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("craftinginterpreter.lox.Lox");
+        if (!engine.isEmpty()) command.add(engine);
+        command.addAll(options);
+        command.add(script.toString());
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        process.waitFor();
+        return output.isEmpty() ? new ArrayList<>() : List.of(output.split("\n"));
+    }
+}